@@ -0,0 +1,333 @@
+//! Benchmarks of the per-event filter and DQ decision path.
+//!
+//! Run with `cargo bench --bench filter_hot_path`. Criterion reports the time
+//! and throughput per event; the allocations per event are counted by the
+//! global allocator below and printed before each group.
+//!
+//! The service modules live in the binary crate, so they are compiled into
+//! this bench through `#[path]`. Redis is replaced by `MemRedis`.
+
+#![allow(dead_code)]
+
+#[path = "../src/app_state.rs"]
+mod app_state;
+#[path = "../src/ctl/mod.rs"]
+mod ctl;
+#[path = "../src/models/mod.rs"]
+mod models;
+#[path = "../src/service/mod.rs"]
+mod service;
+mod support;
+
+use std::alloc::{GlobalAlloc, Layout, System};
+use std::hint::black_box;
+use std::sync::atomic::{AtomicU64, Ordering};
+
+use chrono::NaiveDateTime;
+use criterion::{Criterion, Throughput, criterion_group, criterion_main};
+use serde_json::Value;
+
+use crate::ctl::bs_model::BoxReportRequest;
+use crate::models::{algorithm, event_filter_config};
+use crate::service::event_processing_svc::{self, CompiledFilterConfig};
+use crate::service::filters::{other_filter::{self, OtherRules}, plate_filter::{self, PlateRules}};
+use crate::support::mem_redis::MemRedis;
+
+const PLATE_CONFIG: &str = include_str!("fixtures/filter_config_plate.json");
+const OTHER_CONFIG: &str = include_str!("fixtures/filter_config_other.json");
+const EVENT_PLATE: &str = include_str!("fixtures/event_plate.json");
+const EVENT_FLOW: &str = include_str!("fixtures/event_flow.json");
+const EVENT_SNAPSHOT: &str = include_str!("fixtures/event_snapshot.json");
+
+/// Distinct positions cycled by the same-position miss case, twice the ring size
+/// so every box has been evicted when it comes round again.
+const POSITIONS: usize = 16;
+/// Cooling of `ignoreSamePlateEvents` in the fixture, plus one second.
+const PLATE_COOLING_MS: u64 = 301_000;
+
+struct CountingAlloc;
+
+static ALLOCATIONS: AtomicU64 = AtomicU64::new(0);
+static ALLOCATED_BYTES: AtomicU64 = AtomicU64::new(0);
+
+unsafe impl GlobalAlloc for CountingAlloc {
+    unsafe fn alloc(&self, layout: Layout) -> *mut u8 {
+        ALLOCATIONS.fetch_add(1, Ordering::Relaxed);
+        ALLOCATED_BYTES.fetch_add(layout.size() as u64, Ordering::Relaxed);
+        unsafe { System.alloc(layout) }
+    }
+
+    unsafe fn dealloc(&self, ptr: *mut u8, layout: Layout) {
+        unsafe { System.dealloc(ptr, layout) }
+    }
+
+    unsafe fn realloc(&self, ptr: *mut u8, layout: Layout, new_size: usize) -> *mut u8 {
+        ALLOCATIONS.fetch_add(1, Ordering::Relaxed);
+        ALLOCATED_BYTES.fetch_add(new_size as u64, Ordering::Relaxed);
+        unsafe { System.realloc(ptr, layout, new_size) }
+    }
+}
+
+#[global_allocator]
+static GLOBAL: CountingAlloc = CountingAlloc;
+
+/// Runs `op` a fixed number of times and prints its allocations per call.
+fn report_allocations(name: &str, mut op: impl FnMut()) {
+    const RUNS: u64 = 10_000;
+    op(); // warm up lazily built state
+    let (count, bytes) = (ALLOCATIONS.load(Ordering::Relaxed), ALLOCATED_BYTES.load(Ordering::Relaxed));
+    for _ in 0..RUNS {
+        op();
+    }
+    let count = ALLOCATIONS.load(Ordering::Relaxed) - count;
+    let bytes = ALLOCATED_BYTES.load(Ordering::Relaxed) - bytes;
+    println!("{:<40} {:>8.2} allocs/op {:>10.1} bytes/op", name, count as f64 / RUNS as f64, bytes as f64 / RUNS as f64);
+}
+
+fn event(json: &str) -> BoxReportRequest {
+    let mut event: BoxReportRequest = serde_json::from_str(json).expect("invalid event fixture");
+    event.decode_extra_data();
+    event
+}
+
+fn config(json: &str) -> Value {
+    serde_json::from_str(json).expect("invalid config fixture")
+}
+
+fn filter_config_model(group: &str, config: Value) -> event_filter_config::Model {
+    event_filter_config::Model {
+        id: 0,
+        project_id: Some(1),
+        setting_group: Some(group.to_string()),
+        group_name: Some(group.to_string()),
+        config: Some(config),
+        sort: None,
+        create_time: NaiveDateTime::default(),
+        update_time: NaiveDateTime::default(),
+        create_by: None,
+        update_by: None,
+        is_del: 0,
+    }
+}
+
+fn review_algorithm() -> algorithm::Model {
+    algorithm::Model {
+        id: 1,
+        code: Some("muck_truck_uncovered".to_string()),
+        pcode: None,
+        enname: None,
+        cnname: None,
+        status: Some(1),
+        draw_config: None,
+        editable_config: None,
+        label: None,
+        draw_type: None,
+        description: None,
+        is_large_model: Some(1),
+        large_model_conf: None,
+        large_model_code_ref: None,
+        create_time: None,
+        update_time: None,
+        create_by: None,
+        update_by: None,
+        is_del: 0,
+    }
+}
+
+/// Events of the flow fixture at `POSITIONS` boxes that do not overlap each other.
+fn flow_events() -> Vec<BoxReportRequest> {
+    (0..POSITIONS)
+        .map(|i| {
+            let mut event = event(EVENT_FLOW);
+            let x = 100.0 * i as f64;
+            event.extra_slots.position = Some(vec![x, 300.0, x + 80.0, 380.0, 0.87]);
+            event
+        })
+        .collect()
+}
+
+fn bench_plate_filter(c: &mut Criterion) {
+    let rules = PlateRules::compile(&config(PLATE_CONFIG));
+    let mut group = c.benchmark_group("plate_filter");
+    group.throughput(Throughput::Elements(1));
+
+    // Every rule is evaluated: the cooldown of the same-plate rule has run out.
+    let mut redis = MemRedis::new();
+    let mut vo = event(EVENT_PLATE);
+    let mut op = || {
+        redis.advance(PLATE_COOLING_MS);
+        black_box(plate_filter::filter(&mut vo, &rules, &mut redis));
+    };
+    report_allocations("plate_filter/all_rules_pass", &mut op);
+    group.bench_function("all_rules_pass", |b| b.iter(&mut op));
+
+    // Rejected by the last rule, the plate was seen within the cooldown.
+    let mut redis = MemRedis::new();
+    let mut vo = event(EVENT_PLATE);
+    let mut op = || {
+        black_box(plate_filter::filter(&mut vo, &rules, &mut redis));
+    };
+    report_allocations("plate_filter/same_plate_hit", &mut op);
+    group.bench_function("same_plate_hit", |b| b.iter(&mut op));
+
+    // Rejected by the first rule.
+    let mut redis = MemRedis::new();
+    let mut vo = event(EVENT_PLATE);
+    vo.plate_color = Some("s_blue".to_string());
+    let mut op = || {
+        black_box(plate_filter::filter(&mut vo, &rules, &mut redis));
+    };
+    report_allocations("plate_filter/yellow_plate_reject", &mut op);
+    group.bench_function("yellow_plate_reject", |b| b.iter(&mut op));
+
+    // No rule references the event type.
+    let mut redis = MemRedis::new();
+    let mut vo = event(EVENT_PLATE);
+    vo.event_type = Some("9999".to_string());
+    let mut op = || {
+        black_box(plate_filter::filter(&mut vo, &rules, &mut redis));
+    };
+    report_allocations("plate_filter/unrelated_event_type", &mut op);
+    group.bench_function("unrelated_event_type", |b| b.iter(&mut op));
+
+    group.finish();
+}
+
+fn bench_other_filter(c: &mut Criterion) {
+    let rules = OtherRules::compile(&config(OTHER_CONFIG));
+    let mut group = c.benchmark_group("other_filter");
+    group.throughput(Throughput::Elements(1));
+
+    // Flow event at a box that left the ring: full scan, then insert.
+    let mut redis = MemRedis::new();
+    let mut events = flow_events();
+    let mut i = 0;
+    let mut op = || {
+        i = (i + 1) % POSITIONS;
+        black_box(other_filter::filter(&mut events[i], &rules, true, &mut redis));
+    };
+    report_allocations("other_filter/same_pos_flow_miss", &mut op);
+    group.bench_function("same_pos_flow_miss", |b| b.iter(&mut op));
+
+    // Flow event at the box of the previous one.
+    let mut redis = MemRedis::new();
+    let mut vo = event(EVENT_FLOW);
+    let mut op = || {
+        black_box(other_filter::filter(&mut vo, &rules, true, &mut redis));
+    };
+    report_allocations("other_filter/same_pos_flow_hit", &mut op);
+    group.bench_function("same_pos_flow_hit", |b| b.iter(&mut op));
+
+    // Box taken from the snapshot points.
+    let mut redis = MemRedis::new();
+    let mut vo = event(EVENT_SNAPSHOT);
+    let mut op = || {
+        black_box(other_filter::filter(&mut vo, &rules, true, &mut redis));
+    };
+    report_allocations("other_filter/same_pos_snapshot_hit", &mut op);
+    group.bench_function("same_pos_snapshot_hit", |b| b.iter(&mut op));
+
+    // Same position disabled for the type, rejected by the event result.
+    let mut redis = MemRedis::new();
+    let mut vo = event(EVENT_FLOW);
+    vo.event_type = Some("8103".to_string());
+    vo.extra_slots.event_result = Some("normal".to_string());
+    let mut op = || {
+        black_box(other_filter::filter(&mut vo, &rules, true, &mut redis));
+    };
+    report_allocations("other_filter/ignore_part_reject", &mut op);
+    group.bench_function("ignore_part_reject", |b| b.iter(&mut op));
+
+    group.finish();
+}
+
+fn bench_filter_event(c: &mut Criterion) {
+    let configs = [
+        filter_config_model("plate", config(PLATE_CONFIG)),
+        filter_config_model("other", config(OTHER_CONFIG)),
+    ];
+    let compiled = CompiledFilterConfig::compile(&configs);
+    let mut group = c.benchmark_group("filter_event");
+    group.throughput(Throughput::Elements(1));
+
+    let mut redis = MemRedis::new();
+    let mut vo = event(EVENT_PLATE);
+    let mut op = || {
+        redis.advance(PLATE_COOLING_MS);
+        black_box(event_processing_svc::filter_event(&mut vo, &compiled, true, &mut redis));
+    };
+    report_allocations("filter_event/plate_pass", &mut op);
+    group.bench_function("plate_pass", |b| b.iter(&mut op));
+
+    let mut redis = MemRedis::new();
+    let mut events = flow_events();
+    let mut i = 0;
+    let mut op = || {
+        i = (i + 1) % POSITIONS;
+        black_box(event_processing_svc::filter_event(&mut events[i], &compiled, true, &mut redis));
+    };
+    report_allocations("filter_event/flow_pass", &mut op);
+    group.bench_function("flow_pass", |b| b.iter(&mut op));
+
+    // Compiling the rules, paid once per project and config version.
+    let mut op = || {
+        black_box(CompiledFilterConfig::compile(&configs));
+    };
+    report_allocations("filter_event/compile", &mut op);
+    group.bench_function("compile", |b| b.iter(&mut op));
+
+    group.finish();
+}
+
+fn bench_personnel_check(c: &mut Criterion) {
+    let algorithm = review_algorithm();
+    let mut group = c.benchmark_group("personnel_check");
+    group.throughput(Throughput::Elements(1));
+
+    // isOpenDQ with an openDqTime window.
+    let mut redis = MemRedis::new();
+    let vo = event(EVENT_PLATE);
+    let mut op = || {
+        black_box(event_processing_svc::personnel_check(&vo, &algorithm, &mut redis));
+    };
+    report_allocations("personnel_check/dq_time_window", &mut op);
+    group.bench_function("dq_time_window", |b| b.iter(&mut op));
+
+    // No isOpenDQ, decided by the global switch and the algorithm.
+    let mut redis = MemRedis::new();
+    redis.set("Global_Review", "1");
+    let mut vo = event(EVENT_SNAPSHOT);
+    vo.extra_slots.alg_param.as_mut().unwrap().is_open_dq = None;
+    let mut op = || {
+        black_box(event_processing_svc::personnel_check(&vo, &algorithm, &mut redis));
+    };
+    report_allocations("personnel_check/global_switch", &mut op);
+    group.bench_function("global_switch", |b| b.iter(&mut op));
+
+    group.finish();
+}
+
+fn bench_decode_extra_data(c: &mut Criterion) {
+    let mut group = c.benchmark_group("decode_extra_data");
+    group.throughput(Throughput::Elements(1));
+
+    let mut vo = event(EVENT_PLATE);
+    let mut op = || {
+        vo.decode_extra_data();
+        black_box(&vo.extra_slots);
+    };
+    report_allocations("decode_extra_data/plate", &mut op);
+    group.bench_function("plate", |b| b.iter(&mut op));
+
+    group.finish();
+}
+
+criterion_group!(
+    benches,
+    bench_plate_filter,
+    bench_other_filter,
+    bench_filter_event,
+    bench_personnel_check,
+    bench_decode_extra_data
+);
+criterion_main!(benches);
@@ -0,0 +1,149 @@
+//! In-memory stand-in for the Redis commands used on the filter path.
+//!
+//! Implements `ConnectionLike` over a hash map, so every `redis::Commands`
+//! helper works against it. Keys expire on a virtual clock that only moves
+//! through `advance`, which lets a benchmark decide whether a cooldown is
+//! still running. Scripts are not supported; the same-position filter is
+//! run with node affinity, which keeps its rings in memory.
+
+use std::collections::HashMap;
+use std::io;
+
+use redis::{ConnectionLike, RedisError, RedisResult, Value};
+
+#[derive(Default)]
+pub struct MemRedis {
+    entries: HashMap<Vec<u8>, (Vec<u8>, Option<u64>)>,
+    now_ms: u64,
+}
+
+impl MemRedis {
+    pub fn new() -> Self {
+        Self::default()
+    }
+
+    /// Moves the virtual clock, expiring the keys whose TTL ran out.
+    pub fn advance(&mut self, millis: u64) {
+        self.now_ms += millis;
+    }
+
+    pub fn set(&mut self, key: &str, value: &str) {
+        self.entries.insert(key.as_bytes().to_vec(), (value.as_bytes().to_vec(), None));
+    }
+
+    fn get(&self, key: &[u8]) -> Value {
+        match self.entries.get(key) {
+            Some((value, expires_at)) if expires_at.is_none_or(|t| t > self.now_ms) => {
+                Value::BulkString(value.clone())
+            }
+            _ => Value::Nil,
+        }
+    }
+
+    fn execute(&mut self, args: &[&[u8]]) -> RedisResult<Value> {
+        let Some((name, args)) = args.split_first() else { return Err(unsupported("empty command")) };
+        match (name.to_ascii_uppercase().as_slice(), args) {
+            (b"GET", [key]) => Ok(self.get(key)),
+            (b"SET", [key, value, options @ ..]) => {
+                let ttl_ms = match options {
+                    [] => None,
+                    [unit, ttl] => {
+                        let ttl = parse_u64(ttl)?;
+                        match unit.to_ascii_uppercase().as_slice() {
+                            b"EX" => Some(ttl * 1000),
+                            b"PX" => Some(ttl),
+                            _ => return Err(unsupported("SET option")),
+                        }
+                    }
+                    _ => return Err(unsupported("SET options")),
+                };
+                self.entries.insert(key.to_vec(), (value.to_vec(), ttl_ms.map(|ttl| self.now_ms + ttl)));
+                Ok(Value::Okay)
+            }
+            (b"SETEX", [key, ttl, value]) => {
+                let expires_at = self.now_ms + parse_u64(ttl)? * 1000;
+                self.entries.insert(key.to_vec(), (value.to_vec(), Some(expires_at)));
+                Ok(Value::Okay)
+            }
+            (b"DEL", keys) => {
+                let removed = keys.iter().filter(|key| self.entries.remove(**key).is_some()).count();
+                Ok(Value::Int(removed as i64))
+            }
+            _ => Err(unsupported(&String::from_utf8_lossy(name))),
+        }
+    }
+}
+
+impl ConnectionLike for MemRedis {
+    fn req_packed_command(&mut self, cmd: &[u8]) -> RedisResult<Value> {
+        let mut input = cmd;
+        let args = parse_command(&mut input)?;
+        self.execute(&args)
+    }
+
+    fn req_packed_commands(&mut self, cmd: &[u8], offset: usize, count: usize) -> RedisResult<Vec<Value>> {
+        let mut input = cmd;
+        let mut replies = Vec::with_capacity(count);
+        let mut index = 0;
+        while !input.is_empty() {
+            let args = parse_command(&mut input)?;
+            let reply = self.execute(&args)?;
+            if index >= offset && replies.len() < count {
+                replies.push(reply);
+            }
+            index += 1;
+        }
+        Ok(replies)
+    }
+
+    fn get_db(&self) -> i64 {
+        0
+    }
+
+    fn check_connection(&mut self) -> bool {
+        true
+    }
+
+    fn is_open(&self) -> bool {
+        true
+    }
+}
+
+/// Parses one RESP array of bulk strings, `*N\r\n($len\r\nbytes\r\n){N}`.
+fn parse_command<'a>(input: &mut &'a [u8]) -> RedisResult<Vec<&'a [u8]>> {
+    let count = parse_header(input, b'*')?;
+    let mut args = Vec::with_capacity(count);
+    for _ in 0..count {
+        let len = parse_header(input, b'$')?;
+        if input.len() < len + 2 {
+            return Err(unsupported("truncated bulk string"));
+        }
+        args.push(&input[..len]);
+        *input = &input[len + 2..];
+    }
+    Ok(args)
+}
+
+fn parse_header(input: &mut &[u8], prefix: u8) -> RedisResult<usize> {
+    let end = input
+        .windows(2)
+        .position(|w| w == b"\r\n")
+        .ok_or_else(|| unsupported("missing CRLF"))?;
+    if input.first() != Some(&prefix) {
+        return Err(unsupported("unexpected RESP type"));
+    }
+    let value = parse_u64(&input[1..end])? as usize;
+    *input = &input[end + 2..];
+    Ok(value)
+}
+
+fn parse_u64(bytes: &[u8]) -> RedisResult<u64> {
+    std::str::from_utf8(bytes)
+        .ok()
+        .and_then(|s| s.parse().ok())
+        .ok_or_else(|| unsupported("integer argument"))
+}
+
+fn unsupported(what: &str) -> RedisError {
+    RedisError::from(io::Error::new(io::ErrorKind::Unsupported, format!("MemRedis: {}", what)))
+}
@@ -0,0 +1,3 @@
+//! Stand-ins shared by the benchmarks.
+
+pub mod mem_redis;
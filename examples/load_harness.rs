@@ -0,0 +1,483 @@
+//! Open-loop load harness for `/v1/box/report`.
+//!
+//! Sends synthetic box reports at a fixed rate to a running service and
+//! reports throughput, latency percentiles and where the time went. Latency
+//! is measured from the scheduled send time, so a stalled service shows up
+//! in the percentiles instead of slowing the load down.
+//!
+//! The DQ service and the message center (which also carries the Kafka
+//! pushes when `KAFKA_BROKERS` is unset) are served in-process by stand-ins
+//! with a configurable latency. MySQL and Redis are the local instances the
+//! service is started against; boxes upload snapshots themselves, so no
+//! object store is involved. Start the service with
+//!
+//! ```text
+//! DQ_SERVICE_URL=http://127.0.0.1:3900 MESSAGE_CENTER_URL=http://127.0.0.1:3900 cargo run --release
+//! ```
+//!
+//! then run `cargo run --release --example load_harness`. Settings are read
+//! from `LOAD_*` / `STANDIN_*` environment variables, see `Settings::from_env`.
+//!
+//! The reports only get past the task lookup when `LOAD_TASK_CODES` are running
+//! tasks of the database. `cargo run --example load_harness -- seed`, with the
+//! service's `DATABASE_URL`, inserts those tasks, the filter configs of their
+//! project and the algorithms of the generated event types, skipping the rows
+//! that exist. Seed before starting the service, its caches keep the previous
+//! rows for up to three minutes.
+
+use std::collections::HashMap;
+use std::env;
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::sync::{Arc, Mutex};
+use std::time::{Duration, Instant};
+
+use axum::{Router, body::Bytes, extract::State, routing::post};
+use hdrhistogram::Histogram;
+use serde_json::{Value, json};
+use tokio::net::TcpListener;
+use tokio::sync::Semaphore;
+
+#[derive(Debug)]
+struct Settings {
+    target: String,
+    rate: u64,
+    duration: Duration,
+    max_in_flight: usize,
+    task_codes: Vec<String>,
+    box_sn: String,
+    project_id: i64,
+    standin_addr: String,
+    standin_latency: Duration,
+}
+
+impl Settings {
+    fn from_env() -> Self {
+        let var = |key: &str, default: &str| env::var(key).unwrap_or_else(|_| default.to_string());
+        let num = |key: &str, default: u64| env::var(key).ok().and_then(|v| v.parse().ok()).unwrap_or(default);
+        Self {
+            target: var("LOAD_TARGET", "http://127.0.0.1:3000"),
+            rate: num("LOAD_RATE", 200).max(1),
+            duration: Duration::from_secs(num("LOAD_DURATION_SECS", 60)),
+            max_in_flight: num("LOAD_MAX_IN_FLIGHT", 1024) as usize,
+            task_codes: var("LOAD_TASK_CODES", "T0001").split(',').map(|s| s.trim().to_string()).collect(),
+            box_sn: var("LOAD_BOX_SN", "BOX-SN-LOADTEST"),
+            project_id: num("LOAD_PROJECT_ID", 990_001) as i64,
+            standin_addr: var("STANDIN_ADDR", "127.0.0.1:3900"),
+            standin_latency: Duration::from_millis(num("STANDIN_LATENCY_MS", 20)),
+        }
+    }
+}
+
+/// Shapes of the generated reports, with their share of the load.
+#[derive(Debug, Clone, Copy, PartialEq, Eq, Hash)]
+enum Kind {
+    Plate,
+    Flow,
+    MultiSnapshot,
+    LargeExtraData,
+}
+
+const MIX: &[(Kind, u64)] = &[(Kind::Plate, 40), (Kind::Flow, 30), (Kind::MultiSnapshot, 20), (Kind::LargeExtraData, 10)];
+
+fn new_histogram() -> Histogram<u64> {
+    // Microseconds up to one minute, three significant digits.
+    Histogram::new_with_bounds(1, 60_000_000, 3).unwrap()
+}
+
+#[derive(Default)]
+struct Outcomes {
+    latency: HashMap<Kind, Histogram<u64>>,
+    /// Responses by result message, with the event id stripped.
+    results: HashMap<String, u64>,
+}
+
+struct Report {
+    outcomes: Mutex<Outcomes>,
+    sent: AtomicU64,
+    /// Sends that waited for one of the `max_in_flight` requests to finish.
+    /// Their latency still counts from the scheduled time.
+    saturated: AtomicU64,
+    transport_errors: AtomicU64,
+}
+
+/// Calls seen by a stand-in downstream.
+#[derive(Default)]
+struct StandinStats {
+    calls: AtomicU64,
+    bytes: AtomicU64,
+}
+
+#[derive(Default)]
+struct Standins {
+    latency: Duration,
+    dq: StandinStats,
+    message_center: StandinStats,
+}
+
+#[tokio::main]
+async fn main() {
+    let settings = Settings::from_env();
+    println!("{:#?}", settings);
+    if env::args().nth(1).as_deref() == Some("seed") {
+        seed(&settings).await;
+        return;
+    }
+
+    let standins = Arc::new(Standins { latency: settings.standin_latency, ..Default::default() });
+    spawn_standins(&settings.standin_addr, standins.clone()).await;
+
+    let client = reqwest::Client::new();
+    let report = Arc::new(Report {
+        outcomes: Mutex::new(Outcomes::default()),
+        sent: AtomicU64::new(0),
+        saturated: AtomicU64::new(0),
+        transport_errors: AtomicU64::new(0),
+    });
+    let url = format!("{}/v1/box/report", settings.target);
+    let run_id = chrono::Utc::now().timestamp_millis();
+    let in_flight = Arc::new(Semaphore::new(settings.max_in_flight));
+    let mut rng = XorShift(run_id as u64 | 1);
+
+    let interval = Duration::from_nanos(1_000_000_000 / settings.rate);
+    let started = Instant::now();
+    let mut seq = 0u64;
+    let mut ticker = tokio::time::interval(interval);
+    ticker.set_missed_tick_behavior(tokio::time::MissedTickBehavior::Burst);
+    loop {
+        // 按计划时间结束, 等待空位时落后的发送也要补发
+        let scheduled = ticker.tick().await.into_std();
+        if scheduled.saturating_duration_since(started) >= settings.duration {
+            break;
+        }
+        seq += 1;
+        // 不丢弃发送: 等到有空位再发, 延迟仍从计划时间算起, 避免协调遗漏
+        let permit = match in_flight.clone().try_acquire_owned() {
+            Ok(permit) => permit,
+            Err(_) => {
+                report.saturated.fetch_add(1, Ordering::Relaxed);
+                in_flight.clone().acquire_owned().await.unwrap()
+            }
+        };
+        let kind = pick_kind(&mut rng);
+        let task_code = &settings.task_codes[rng.next() as usize % settings.task_codes.len()];
+        let body = generate(kind, &format!("load-{}-{}", run_id, seq), task_code, &settings.box_sn, &mut rng);
+        let (client, url, report) = (client.clone(), url.clone(), report.clone());
+        report.sent.fetch_add(1, Ordering::Relaxed);
+        tokio::spawn(async move {
+            let response = client.post(&url).json(&body).send().await;
+            let result = match response {
+                Ok(response) => response.json::<Value>().await.ok(),
+                Err(_) => None,
+            };
+            let elapsed = scheduled.elapsed();
+            drop(permit);
+            let Some(result) = result else {
+                report.transport_errors.fetch_add(1, Ordering::Relaxed);
+                return;
+            };
+            let mut outcomes = report.outcomes.lock().unwrap();
+            outcomes
+                .latency
+                .entry(kind)
+                .or_insert_with(new_histogram)
+                .saturating_record(elapsed.as_micros() as u64);
+            *outcomes.results.entry(result_label(&result)).or_default() += 1;
+        });
+    }
+
+    // Let the outstanding requests finish.
+    let _ = in_flight.acquire_many(settings.max_in_flight as u32).await;
+    let elapsed = started.elapsed();
+    print_report(&report, elapsed);
+    print_standins(&standins, elapsed);
+    print_server_stats(&client, &settings.target).await;
+}
+
+/// Event types of the generated reports, by the algorithm code they resolve to.
+const EVENT_TYPES: &[(&str, &str)] = &[("7001", "load plate"), ("8101", "load flow"), ("8102", "load snapshot")];
+
+/// Inserts the rows the generated reports are resolved against.
+async fn seed(settings: &Settings) {
+    let database_url = env::var("DATABASE_URL").expect("DATABASE_URL must be set to seed");
+    let pool = sqlx::MySqlPool::connect(&database_url).await.expect("failed to connect to MySQL");
+    let mut inserted = 0;
+    for task_code in &settings.task_codes {
+        inserted += sqlx::query(
+            "INSERT INTO task (code, name, box_sn, project_id, project_name, status) \
+             SELECT ?, ?, ?, ?, 'load test', 'running' FROM DUAL \
+             WHERE NOT EXISTS (SELECT 1 FROM task WHERE code = ? AND is_del = 0)",
+        )
+        .bind(task_code)
+        .bind(format!("load {}", task_code))
+        .bind(&settings.box_sn)
+        .bind(settings.project_id)
+        .bind(task_code)
+        .execute(&pool)
+        .await
+        .expect("failed to seed task")
+        .rows_affected();
+    }
+    let filter_configs = [
+        ("plate", include_str!("../benches/fixtures/filter_config_plate.json")),
+        ("other", include_str!("../benches/fixtures/filter_config_other.json")),
+    ];
+    for (sort, (group, config)) in filter_configs.iter().enumerate() {
+        inserted += sqlx::query(
+            "INSERT INTO event_filter_config (project_id, setting_group, group_name, config, sort) \
+             SELECT ?, ?, ?, ?, ? FROM DUAL \
+             WHERE NOT EXISTS (SELECT 1 FROM event_filter_config WHERE project_id = ? AND setting_group = ? AND is_del = 0)",
+        )
+        .bind(settings.project_id)
+        .bind(group)
+        .bind(format!("load {}", group))
+        .bind(config.trim())
+        .bind(sort as i32)
+        .bind(settings.project_id)
+        .bind(group)
+        .execute(&pool)
+        .await
+        .expect("failed to seed event_filter_config")
+        .rows_affected();
+    }
+    for (code, name) in EVENT_TYPES {
+        inserted += sqlx::query(
+            "INSERT INTO algorithm (code, cnname, status, is_large_model) \
+             SELECT ?, ?, 1, 0 FROM DUAL \
+             WHERE NOT EXISTS (SELECT 1 FROM algorithm WHERE code = ? AND is_del = 0)",
+        )
+        .bind(code)
+        .bind(name)
+        .bind(code)
+        .execute(&pool)
+        .await
+        .expect("failed to seed algorithm")
+        .rows_affected();
+    }
+    println!("seeded {} rows for tasks {:?}, project {}", inserted, settings.task_codes, settings.project_id);
+}
+
+async fn spawn_standins(addr: &str, standins: Arc<Standins>) {
+    async fn dq(State(standins): State<Arc<Standins>>, body: Bytes) -> &'static str {
+        standins.dq.calls.fetch_add(1, Ordering::Relaxed);
+        standins.dq.bytes.fetch_add(body.len() as u64, Ordering::Relaxed);
+        tokio::time::sleep(standins.latency).await;
+        r#"{"code":0,"message":"ok"}"#
+    }
+    async fn message_center(State(standins): State<Arc<Standins>>, body: Bytes) -> &'static str {
+        standins.message_center.calls.fetch_add(1, Ordering::Relaxed);
+        standins.message_center.bytes.fetch_add(body.len() as u64, Ordering::Relaxed);
+        tokio::time::sleep(standins.latency).await;
+        r#"{"code":0,"message":"ok"}"#
+    }
+
+    let app = Router::new()
+        .route("/v1/dq-service/event/add", post(dq))
+        .route("/v1/message/center/mq/produce/topic/{topic}", post(message_center))
+        .with_state(standins);
+    let listener = TcpListener::bind(addr).await.expect("failed to bind the stand-in address");
+    tokio::spawn(async move { axum::serve(listener, app).await.unwrap() });
+}
+
+fn print_report(report: &Report, elapsed: Duration) {
+    let outcomes = report.outcomes.lock().unwrap();
+    let mut total = new_histogram();
+    for histogram in outcomes.latency.values() {
+        total.add(histogram).unwrap();
+    }
+    let secs = elapsed.as_secs_f64();
+    println!();
+    println!("duration           {:.1}s", secs);
+    println!("sent               {}", report.sent.load(Ordering::Relaxed));
+    println!("completed          {} ({:.1}/s)", total.len(), total.len() as f64 / secs);
+    println!("client saturated   {} (delayed, latency kept)", report.saturated.load(Ordering::Relaxed));
+    println!("transport errors   {}", report.transport_errors.load(Ordering::Relaxed));
+    println!();
+    println!("{:<16} {:>9} {:>10} {:>10} {:>10} {:>10}", "latency (ms)", "count", "p50", "p99", "p999", "max");
+    print_latency("all", &total);
+    for (kind, _) in MIX {
+        if let Some(histogram) = outcomes.latency.get(kind) {
+            print_latency(&format!("{:?}", kind), histogram);
+        }
+    }
+    println!();
+    println!("results");
+    let mut results: Vec<_> = outcomes.results.iter().collect();
+    results.sort_by(|a, b| b.1.cmp(a.1));
+    for (label, count) in results {
+        println!("  {:>9}  {}", count, label);
+    }
+}
+
+fn print_latency(name: &str, histogram: &Histogram<u64>) {
+    let ms = |quantile: f64| histogram.value_at_quantile(quantile) as f64 / 1000.0;
+    println!(
+        "{:<16} {:>9} {:>10.2} {:>10.2} {:>10.2} {:>10.2}",
+        name,
+        histogram.len(),
+        ms(0.5),
+        ms(0.99),
+        ms(0.999),
+        histogram.max() as f64 / 1000.0
+    );
+}
+
+fn print_standins(standins: &Standins, elapsed: Duration) {
+    println!();
+    println!("downstream stand-ins (latency {:?})", standins.latency);
+    for (name, stats) in [("dq", &standins.dq), ("message_center", &standins.message_center)] {
+        let calls = stats.calls.load(Ordering::Relaxed);
+        println!(
+            "  {:<16} {:>9} calls {:>8.1}/s {:>12} bytes",
+            name,
+            calls,
+            calls as f64 / elapsed.as_secs_f64(),
+            stats.bytes.load(Ordering::Relaxed)
+        );
+    }
+}
+
+/// The service's own view: time per pipeline stage and waits per downstream.
+async fn print_server_stats(client: &reqwest::Client, target: &str) {
+    for path in ["/v1/pipeline/stats", "/v1/downstream/stats"] {
+        let stats = match client.get(format!("{}{}", target, path)).send().await {
+            Ok(response) => response.json::<Value>().await.ok(),
+            Err(_) => None,
+        };
+        println!();
+        println!("{}", path);
+        match stats.and_then(|s| s.get("data").cloned()) {
+            Some(data) => println!("{}", serde_json::to_string_pretty(&data).unwrap_or_default()),
+            None => println!("  unavailable"),
+        }
+    }
+}
+
+/// Strips the event id from the service message, keeping the outcome.
+fn result_label(result: &Value) -> String {
+    let code = result.get("code").and_then(|v| v.as_i64()).unwrap_or(-1);
+    let message = result.get("message").and_then(|v| v.as_str()).unwrap_or("");
+    let outcome = message.rsplit_once("RESULT").map_or(message, |(_, outcome)| outcome);
+    format!("code {} {}", code, outcome.trim_start_matches([':', '：', ' ']))
+}
+
+fn pick_kind(rng: &mut XorShift) -> Kind {
+    let total: u64 = MIX.iter().map(|(_, weight)| weight).sum();
+    let mut roll = rng.next() % total;
+    for (kind, weight) in MIX {
+        if roll < *weight {
+            return *kind;
+        }
+        roll -= weight;
+    }
+    Kind::Plate
+}
+
+/// Builds a report shaped like the boxes send it.
+fn generate(kind: Kind, engine_event_id: &str, task_code: &str, box_sn: &str, rng: &mut XorShift) -> Value {
+    let now = chrono::Utc::now().timestamp_millis();
+    let x = (rng.next() % 1600) as f64;
+    let y = (rng.next() % 800) as f64;
+    let snapshot = |count: usize| -> Value {
+        (0..count)
+            .map(|i| {
+                let d = i as f64 * 4.0;
+                json!({
+                    "uri": format!("s3://event/load/{}_{}.jpg", engine_event_id, i),
+                    "pts": [[x + d, y + d], [x + d + 220.0, y + d + 180.0]],
+                    "ts": now + i as i64 * 200,
+                })
+            })
+            .collect()
+    };
+    let alg_list = json!([{
+        "algParam": {
+            "coolingSecond": 60,
+            "isOpenDQ": rng.next() % 2,
+            "openDqTime": { "openDqStartTime": "00:00", "openDqEndTime": "23:59" },
+        }
+    }]);
+
+    let mut report = json!({
+        "taskCode": task_code,
+        "source": box_sn,
+        "eventTime": now,
+        "endTime": now + 5000,
+        "engineEventId": engine_event_id,
+        "engineVersion": "3.8.2",
+        "cameraCode": format!("CAM-{:04}", rng.next() % 16),
+        "originalViolationIndex": 0,
+        "snapshotUriCompress": format!("s3://event/load/{}_c.jpg", engine_event_id),
+        "snapshotUriRawCompress": format!("s3://event/load/{}_r.jpg", engine_event_id),
+        "snapshotUriCoverCompress": format!("s3://event/load/{}_v.jpg", engine_event_id),
+    });
+    let fields = match kind {
+        Kind::Plate => {
+            let plate_color = if rng.next() % 4 == 0 { "s_blue" } else { "s_yellow" };
+            json!({
+                "eventType": "7001",
+                "plateNumber": format!("苏A{:05}D", rng.next() % 100_000),
+                "plateColor": plate_color,
+                "snapshot": snapshot(1),
+                "extraData": {
+                    "plateNumberScore": 0.5 + (rng.next() % 50) as f64 / 100.0,
+                    "summary": { "plate/type": { "label": "s_yellow" } },
+                    "eventResult": { "result": "violation" },
+                    "originalConfig": { "algList": alg_list },
+                },
+            })
+        }
+        Kind::Flow => json!({
+            "eventType": "8101",
+            "snapshot": snapshot(1),
+            "extraData": {
+                "position": [x, y, x + 220.0, y + 180.0, 0.87],
+                "eventResult": { "result": "violation" },
+                "originalConfig": { "algList": alg_list },
+            },
+        }),
+        Kind::MultiSnapshot => json!({
+            "eventType": "8102",
+            "snapshot": snapshot(8),
+            "extraData": {
+                "eventResult": { "result": "violation" },
+                "originalConfig": { "algList": alg_list },
+            },
+        }),
+        Kind::LargeExtraData => {
+            // About 60 KiB of detections, as dense scenes produce.
+            let detections: Vec<Value> = (0..600)
+                .map(|i| json!({
+                    "label": "person",
+                    "score": 0.5 + (i % 50) as f64 / 100.0,
+                    "box": [x, y, x + 40.0, y + 90.0],
+                    "trackId": i,
+                }))
+                .collect();
+            json!({
+                "eventType": "8102",
+                "snapshot": snapshot(3),
+                "extraData": {
+                    "eventResult": { "result": "violation" },
+                    "originalConfig": { "algList": alg_list },
+                    "detections": detections,
+                },
+            })
+        }
+    };
+    if let (Some(report), Some(fields)) = (report.as_object_mut(), fields.as_object()) {
+        report.extend(fields.clone());
+    }
+    report
+}
+
+/// Deterministic per-run generator, keeps the harness free of a `rand` dependency.
+struct XorShift(u64);
+
+impl XorShift {
+    fn next(&mut self) -> u64 {
+        self.0 ^= self.0 << 13;
+        self.0 ^= self.0 >> 7;
+        self.0 ^= self.0 << 17;
+        self.0
+    }
+}
@@ -0,0 +1,37 @@
+-- Range-partitions event_0 by event_time, one partition per day.
+--
+-- Every unique key of a partitioned table has to contain the partitioning
+-- column, so the primary key becomes (id, event_time) and event_time becomes
+-- NOT NULL. Rows without an event time are backfilled with their create time;
+-- the service stores the receive time for reports that come without one.
+-- event_time holds UTC, so the daily partitions are UTC days. create_time is
+-- filled by MySQL in the session time zone, so the backfill converts it from
+-- @create_time_offset: set that to the UTC offset the service's sessions use
+-- (`SELECT TIMEDIFF(NOW(), UTC_TIMESTAMP())`) before running the script.
+--
+-- Only the catch-all partitions are created here. p_history ends at the start
+-- of the current UTC day, computed when the script runs, so p_future holds at
+-- most today's rows when the service splits the daily partitions off it
+-- (EVENT_PARTITION_MAINTENANCE), and the first of those is today. Later on
+-- p_history is dropped like any other expired partition once the retention
+-- has passed.
+
+SET @create_time_offset = '+08:00';
+
+UPDATE event_0
+    SET event_time = CONVERT_TZ(create_time, @create_time_offset, '+00:00')
+    WHERE event_time IS NULL;
+
+ALTER TABLE event_0
+    MODIFY event_time DATETIME NOT NULL,
+    DROP PRIMARY KEY,
+    ADD PRIMARY KEY (id, event_time);
+
+SET @partition_ddl = CONCAT(
+    'ALTER TABLE event_0 PARTITION BY RANGE COLUMNS (event_time) (',
+    'PARTITION p_history VALUES LESS THAN (''', UTC_DATE(), ' 00:00:00''), ',
+    'PARTITION p_future VALUES LESS THAN (MAXVALUE))'
+);
+PREPARE partition_stmt FROM @partition_ddl;
+EXECUTE partition_stmt;
+DEALLOCATE PREPARE partition_stmt;
@@ -1,14 +1,39 @@
 
+use std::sync::Arc;
+
 use redis::Client as RedisClient;
 use sea_orm::DatabaseConnection;
 use serde_json::Value;
 
+use crate::ctl::box_report_pipeline::Pipeline;
+use crate::service::{
+    cooldown_svc::CooldownStore,
+    downstream_svc::{DownstreamLimits, PushMode},
+    event_writer_svc::EventWriter,
+    mq_svc::MqProducer,
+};
+
 // --- AppState ---
 #[derive(Clone)]
 pub struct AppState {
     pub db: DatabaseConnection,
     pub redis_client: RedisClient,
     pub filter_events_config: Value,
-    pub message_center_url: String,
     pub dq_service_url: String,
+    /// Boxes are pinned to this node by the load balancer, so node-local state is authoritative for them.
+    pub node_affinity: bool,
+    /// Staged ingest pipeline, `None` when reports are processed inside the request.
+    pub pipeline: Option<Pipeline>,
+    /// Group-commit writer for events persisted inside the request.
+    pub event_writer: EventWriter,
+    /// Cooldown windows of the frame-capture filter, node-local under `node_affinity`.
+    pub cooldown_store: Arc<dyn CooldownStore>,
+    /// Producer of the Kafka topics, direct to the brokers or via the message center.
+    pub mq_producer: Arc<MqProducer>,
+    /// Shared HTTP client of the downstream services.
+    pub http_client: reqwest::Client,
+    /// Concurrency caps of the downstream services.
+    pub downstream: Arc<DownstreamLimits>,
+    /// Where the follow-up pushes of reports processed inside the request run.
+    pub push_mode: PushMode,
 }
\ No newline at end of file
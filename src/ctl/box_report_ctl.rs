@@ -1,21 +1,57 @@
 use anyhow::{Result, anyhow};
 use axum::{extract::State, response::Json};
-use chrono::{Duration, Local, TimeZone, Utc};
-use redis::Commands;
+use chrono::{Local, Utc};
+use futures::future::join_all;
 use serde_json::{Value, json};
+use std::collections::HashSet;
 use std::sync::Arc;
+use std::sync::atomic::{AtomicI64, Ordering};
+use std::time::Instant;
 
 use crate::{
     app_state::AppState,
-    ctl::bs_model::{BoxReportRequest, ReviewDataPushVo},
-    models::{event, task},
+    ctl::{
+        box_report_pipeline::AcceptedReport,
+        bs_model::{BoxReportRequest, BoxReportResult, ReviewDataPushVo},
+    },
+    models::{algorithm, event, task},
     service::{
-        algorithm_svc, base_config_svc, event_filter_config_svc, event_processing_svc, event_svc,
-        task_svc,
+        algorithm_svc, base_config_svc, camera_svc, dedup_svc::{self, ReplayClaim}, downstream_svc::PushMode,
+        event_filter_config_svc,
+        event_log_svc::{self, AsJson}, event_processing_svc, event_svc,
+        metrics_svc::{self, Outcome, StageTimer},
+        mq_svc, recent_event_svc, task_svc,
     }
 };
 use event_rs::{ JsonResponse, response_result::{RespResult} };
 
+/// `task.type` of weighbridge tasks.
+const TASK_TYPE_WEIGHBRIDGE: &str = "weighbridge";
+
+/// Outcome of running one report through the cooling, filtering and review decisions.
+pub(crate) enum ReportDecision {
+    /// Processing stops here and nothing is persisted.
+    Skip { message: String, mark_processed: bool },
+    /// The event is persisted, then pushed to Kafka (filtered events) or DQ (review enabled).
+    Save {
+        event_model: event::Model,
+        review_algorithm: Option<algorithm::Model>,
+        message: String,
+    },
+}
+
+/// Tasks or algorithms could not be loaded, so the report was not decided.
+/// Unlike an unknown task this is temporary, deciding it again may succeed.
+#[derive(Debug)]
+pub(crate) struct Unavailable(pub anyhow::Error);
+
+impl std::fmt::Display for Unavailable {
+    fn fmt(&self, f: &mut std::fmt::Formatter<'_>) -> std::fmt::Result {
+        self.0.fmt(f)
+    }
+}
+
+impl std::error::Error for Unavailable {}
 
 /// Main entry point for handling event reports from boxes.
 /// This function orchestrates the entire event processing pipeline.
@@ -25,23 +61,15 @@ pub async fn post_box_report(
 ) -> JsonResponse<String> {
     // 获取关键信息日志用
     let logging_engine_event_id = payload.engine_event_id.clone().unwrap_or_default();
-    tracing::info!("盒子上报信息: eventDto engine_event_id: {}", logging_engine_event_id);
-    // 验证source字段
-    if payload.source.is_none() || payload.source.as_deref() == Some("") {
-        return Ok(Json(RespResult::ok_with_msg(format!(
-            "盒子上报信息: engin_event_id: {}, RESULT: 校验异常：Invalid source",
-            logging_engine_event_id
-        ))));
-    };
-    // 验证engin_event_id字段
-    let engin_event_id = match payload.engine_event_id.as_deref() {
-        Some(id) if !id.is_empty() => id.to_string(),
-        _ => {
-            return Ok(Json(RespResult::ok_with_msg(format!(
-                "盒子上报信息: engin_event_id: {}, RESULT: 校验异常：Invalid engine_event_id",
-                logging_engine_event_id
-            ))));
-        }
+    if event_log_svc::full(&payload) {
+        tracing::info!("盒子上报信息: eventDto: {}", AsJson(&payload));
+    } else if event_log_svc::sampled(&logging_engine_event_id) {
+        tracing::info!("盒子上报信息: eventDto engine_event_id: {}", logging_engine_event_id);
+    }
+    // 验证source, engin_event_id字段
+    let engin_event_id = match validate_report(&payload) {
+        Ok(id) => id,
+        Err(message) => return Ok(Json(RespResult::ok_with_msg(message))),
     };
 
     // 初始化redis链接
@@ -50,42 +78,340 @@ pub async fn post_box_report(
         .get_connection()
         .map_err(|err| anyhow!("Redis connection error: {}", err))?;
 
-    // 防重放
-    if redis::cmd("EXISTS")
-        .arg(&engin_event_id)
-        .query::<bool>(&mut redis_conn)
-        .unwrap_or(false)
-    {
+    // 防重放: 到达即占位, 处理失败时释放占位以便盒子重试
+    let claim = dedup_svc::claim(&mut redis_conn, &engin_event_id, app_state.node_affinity);
+    if claim == ReplayClaim::Duplicate {
         return Ok(Json(RespResult::ok_with_msg(format!(
             "盒子上报信息: engin_event_id: {}, RESULT: 事件已经上报过，无需重复处理",
             logging_engine_event_id
         ))));
     }
-    // 获取缓存Task数据
-    let task = enrich_payload_with_task_data(&app_state, &mut payload)
+
+    // 流水线模式: 占位并入队后即应答, 后续阶段异步执行
+    if let Some(pipeline) = app_state.pipeline.as_ref() {
+        let report = AcceptedReport::new(payload, (engin_event_id, claim));
+        return match pipeline.submit(report) {
+            Ok(()) => Ok(Json(RespResult::ok_with_msg(format!(
+                "盒子上报信息: engin_event_id: {}, RESULT: 事件已接收, 异步处理中",
+                logging_engine_event_id
+            )))),
+            Err(report) => {
+                dedup_svc::release(&mut redis_conn, &[report.claim]);
+                Err(anyhow!("Bail: 事件处理队列已满, 请稍后重试, engin_event_id: {}", logging_engine_event_id).into())
+            }
+        };
+    }
+
+    let claims = [(engin_event_id, claim)];
+
+    match process_report(&app_state, &mut payload, &mut redis_conn).await {
+        Ok((message, true)) => {
+            dedup_svc::confirm(&mut redis_conn, &claims);
+            Ok(Json(RespResult::ok_with_msg(message)))
+        }
+        Ok((message, false)) => {
+            dedup_svc::release(&mut redis_conn, &claims);
+            Ok(Json(RespResult::ok_with_msg(message)))
+        }
+        Err(err) => {
+            dedup_svc::release(&mut redis_conn, &claims);
+            Err(err.into())
+        }
+    }
+}
+
+/// Processes a claimed report. Returns the message for the box and whether
+/// the report counts as processed, i.e. its replay claim is kept.
+async fn process_report(
+    app_state: &Arc<AppState>,
+    payload: &mut BoxReportRequest,
+    redis_conn: &mut redis::Connection,
+) -> Result<(String, bool)> {
+    match resolve_and_decide(app_state, payload, redis_conn).await? {
+        ReportDecision::Skip { message, mark_processed } => Ok((message, mark_processed)),
+        ReportDecision::Save { event_model, review_algorithm, message } => {
+            // 执行入库
+            let outcome = Outcome::of_marking(event_model.marking.as_deref());
+            let started = Instant::now();
+            let saved_event = match app_state.event_writer.write(event_model).await {
+                Ok(saved_event) => saved_event,
+                Err(err) => {
+                    metrics_svc::observe_stage("save", payload, Outcome::Failed, started.elapsed());
+                    return Err(anyhow!(err));
+                }
+            };
+            metrics_svc::observe_stage("save", payload, outcome, started.elapsed());
+            recent_event_svc::record_saved(&saved_event);
+            dispatch_after_report_saved(app_state, payload, review_algorithm, saved_event.id).await;
+            Ok((message, true))
+        }
+    }
+}
+
+/// Resolves the task and algorithms of a single report, then runs its decisions.
+/// Fails with `Unavailable` when tasks or algorithms could not be loaded.
+pub(crate) async fn resolve_and_decide(
+    app_state: &Arc<AppState>,
+    payload: &mut BoxReportRequest,
+    redis_conn: &mut redis::Connection,
+) -> Result<ReportDecision> {
+    let mut timer = StageTimer::start();
+    // 获取缓存Task数据, 加载失败时不能当作任务不存在
+    let tasks = task_svc::get_all_running_tasks(&app_state.db, &app_state.redis_client)
         .await
+        .map_err(|err| Unavailable(anyhow!("load running tasks failed, err:{}", err)))?;
+    let task = find_task(&tasks, payload)
         .map_err(|err| anyhow!("no task cached data, err:{}", err))?;
+    let algorithms = algorithm_svc::get_all_algorithms(&app_state.db, &app_state.redis_client)
+        .await
+        .map_err(|err| Unavailable(anyhow!("load algorithms failed, err:{}", err)))?;
+    timer.lap("task");
+
+    Ok(decide_report(app_state, payload, task, &algorithms, redis_conn, timer).await)
+}
+
+/// Batch entry point for boxes replaying their backlog.
+/// Replay claims are pipelined, tasks and algorithms are resolved once for the
+/// whole batch and all persisted events are written with one multi-row insert,
+/// row by row when that fails.
+pub async fn post_box_reports(
+    State(app_state): State<Arc<AppState>>,
+    Json(payloads): Json<Vec<BoxReportRequest>>,
+) -> JsonResponse<Vec<BoxReportResult>> {
+    tracing::info!("盒子批量上报信息: size: {}", payloads.len());
+    let mut results: Vec<BoxReportResult> = payloads
+        .iter()
+        .map(|p| BoxReportResult::new(p.engine_event_id.clone()))
+        .collect();
+
+    // 验证source, engin_event_id字段, 同批次内重复的engin_event_id只处理第一条
+    let mut seen = HashSet::new();
+    let mut candidates: Vec<(usize, String)> = Vec::with_capacity(payloads.len());
+    for (idx, payload) in payloads.iter().enumerate() {
+        match validate_report(payload) {
+            Ok(id) if seen.insert(id.clone()) => candidates.push((idx, id)),
+            Ok(id) => {
+                results[idx].message = format!(
+                    "盒子上报信息: engin_event_id: {}, RESULT: 事件已经上报过，无需重复处理",
+                    id
+                );
+            }
+            Err(message) => results[idx].message = message,
+        }
+    }
+    if candidates.is_empty() {
+        return Ok(Json(RespResult::ok(results)));
+    }
+
+    // 初始化redis链接
+    let mut redis_conn = app_state
+        .redis_client
+        .get_connection()
+        .map_err(|err| anyhow!("Redis connection error: {}", err))?;
+
+    // 防重放, 批量占位
+    let ids: Vec<String> = candidates.iter().map(|(_, id)| id.clone()).collect();
+    let claims = dedup_svc::claim_all(&mut redis_conn, &ids, app_state.node_affinity);
+
+    // 任务或算法加载失败时整批释放占位, 由盒子重试, 不能当作任务不存在
+    let loaded = async {
+        let tasks = task_svc::get_all_running_tasks(&app_state.db, &app_state.redis_client)
+            .await
+            .map_err(|err| Unavailable(anyhow!("load running tasks failed, err:{}", err)))?;
+        let algorithms = algorithm_svc::get_all_algorithms(&app_state.db, &app_state.redis_client)
+            .await
+            .map_err(|err| Unavailable(anyhow!("load algorithms failed, err:{}", err)))?;
+        Ok::<_, anyhow::Error>((tasks, algorithms))
+    }
+    .await;
+    let (tasks, algorithms) = match loaded {
+        Ok(loaded) => loaded,
+        Err(err) => {
+            let claimed: Vec<(String, ReplayClaim)> = ids
+                .into_iter()
+                .zip(claims)
+                .filter(|(_, claim)| *claim != ReplayClaim::Duplicate)
+                .collect();
+            dedup_svc::release(&mut redis_conn, &claimed);
+            return Err(err.into());
+        }
+    };
+
+    let mut payloads = payloads;
+    let mut processed = Vec::new();
+    let mut released = Vec::new();
+    let mut saves = Vec::new();
+    for ((idx, id), claim) in candidates.into_iter().zip(claims) {
+        if claim == ReplayClaim::Duplicate {
+            results[idx].message = format!(
+                "盒子上报信息: engin_event_id: {}, RESULT: 事件已经上报过，无需重复处理",
+                id
+            );
+            continue;
+        }
+        let payload = &mut payloads[idx];
+        let mut timer = StageTimer::start();
+        let task = match find_task(&tasks, payload) {
+            Ok(task) => task,
+            Err(err) => {
+                results[idx].message = format!("no task cached data, err:{}", err);
+                released.push((id, claim));
+                continue;
+            }
+        };
+        timer.lap("task");
+        match decide_report(&app_state, payload, task, &algorithms, &mut redis_conn, timer).await {
+            ReportDecision::Skip { message, mark_processed } => {
+                if mark_processed {
+                    processed.push((id, claim));
+                } else {
+                    released.push((id, claim));
+                }
+                results[idx].message = message;
+            }
+            ReportDecision::Save { event_model, review_algorithm, message } => {
+                results[idx].message = message;
+                saves.push((idx, (id, claim), event_model, review_algorithm));
+            }
+        }
+    }
+
+    // 批量入库, 失败时逐条重试, 一条坏数据不拖累整批
+    if !saves.is_empty() {
+        let event_models = saves.iter().map(|(_, _, model, _)| model.clone()).collect();
+        let started = Instant::now();
+        let stored: Vec<bool> = match event_svc::create_events(&app_state.db, event_models).await {
+            Ok(()) => vec![true; saves.len()],
+            Err(err) => {
+                tracing::warn!("Batch insert of {} events failed, retrying one by one: {}", saves.len(), err);
+                let mut stored = Vec::with_capacity(saves.len());
+                for (_, (id, _), event_model, _) in &saves {
+                    let result = event_svc::create_event(&app_state.db, event_model.clone()).await;
+                    if let Err(err) = &result {
+                        tracing::error!("Insert of event failed, engin_event_id: {}, err: {}", id, err);
+                    }
+                    stored.push(result.is_ok());
+                }
+                stored
+            }
+        };
+        let elapsed = started.elapsed();
+
+        let mut dispatches = Vec::new();
+        for ((idx, claimed, event_model, review_algorithm), stored) in saves.into_iter().zip(stored) {
+            if !stored {
+                metrics_svc::observe_stage("save", &payloads[idx], Outcome::Failed, elapsed);
+                results[idx].message = format!(
+                    "盒子上报信息: engin_event_id: {}, RESULT: 事件入库失败",
+                    claimed.0
+                );
+                released.push(claimed);
+                continue;
+            }
+            let outcome = Outcome::of_marking(event_model.marking.as_deref());
+            metrics_svc::observe_stage("save", &payloads[idx], outcome, elapsed);
+            recent_event_svc::record_saved(&event_model);
+            dispatches.push((idx, review_algorithm, event_model.id));
+            processed.push(claimed);
+        }
+        // 同批次的推送并发执行, 不按条数累加下游耗时
+        join_all(dispatches.into_iter().map(|(idx, review_algorithm, event_id)| {
+            dispatch_after_report_saved(&app_state, &payloads[idx], review_algorithm, event_id)
+        }))
+        .await;
+    }
+
+    // 处理成功的保留占位, 其余释放以便盒子重试
+    dedup_svc::confirm(&mut redis_conn, &processed);
+    dedup_svc::release(&mut redis_conn, &released);
+    Ok(Json(RespResult::ok(results)))
+}
+
+/// Validates the mandatory fields of a report.
+/// Returns the engine_event_id, or the message to send back to the box.
+fn validate_report(payload: &BoxReportRequest) -> std::result::Result<String, String> {
+    let logging_engine_event_id = payload.engine_event_id.as_deref().unwrap_or_default();
+    // 验证source字段
+    if payload.source.is_none() || payload.source.as_deref() == Some("") {
+        return Err(format!(
+            "盒子上报信息: engin_event_id: {}, RESULT: 校验异常：Invalid source",
+            logging_engine_event_id
+        ));
+    };
+    // 验证engin_event_id字段
+    match payload.engine_event_id.as_deref() {
+        Some(id) if !id.is_empty() => Ok(id.to_string()),
+        _ => Err(format!(
+            "盒子上报信息: engin_event_id: {}, RESULT: 校验异常：Invalid engine_event_id",
+            logging_engine_event_id
+        )),
+    }
+}
+
+/// Runs a report whose task is resolved through cooling, filtering and the review decision.
+/// The stage timings of the report are recorded with the outcome of the decision.
+async fn decide_report(
+    app_state: &Arc<AppState>,
+    payload: &mut BoxReportRequest,
+    task: &task::Model,
+    algorithms: &[algorithm::Model],
+    redis_conn: &mut redis::Connection,
+    mut timer: StageTimer,
+) -> ReportDecision {
+    let decision = run_decisions(app_state, payload, task, algorithms, redis_conn, &mut timer).await;
+    let outcome = match &decision {
+        ReportDecision::Save { event_model, .. } => Outcome::of_marking(event_model.marking.as_deref()),
+        ReportDecision::Skip { mark_processed: true, .. } => Outcome::Cooling,
+        ReportDecision::Skip { .. } => Outcome::Skipped,
+    };
+    timer.finish(payload, outcome);
+    decision
+}
+
+async fn run_decisions(
+    app_state: &Arc<AppState>,
+    payload: &mut BoxReportRequest,
+    task: &task::Model,
+    algorithms: &[algorithm::Model],
+    redis_conn: &mut redis::Connection,
+    timer: &mut StageTimer,
+) -> ReportDecision {
+    let logging_engine_event_id = payload.engine_event_id.clone().unwrap_or_default();
+    payload.decode_extra_data();
     // 基础字段赋值
     payload.project_id = task.project_id.unwrap_or(0);
     payload.project_name = task.project_name.clone().unwrap_or_default();
+    // 地磅布控任务: 多路流布控时不能取Task中的cameraCode, 按盒子和摄像头编码解析摄像头名称
+    if task.task_type.as_deref() == Some(TASK_TYPE_WEIGHBRIDGE) {
+        if let (Some(box_sn), Some(camera_code)) = (payload.source.as_deref(), payload.camera_code.as_deref()) {
+            payload.camera_code_name = camera_svc::find_camera_name(&app_state.db, box_sn, camera_code)
+                .await
+                .unwrap_or_else(|err| {
+                    tracing::warn!("resolve camera name failed, box_sn: {}, err: {}", box_sn, err);
+                    None
+                });
+        }
+    }
 
-    // 冷却时间逻辑校验
-    if handle_cooling_down_filter(&app_state, &payload, &mut redis_conn).await {
-        tracing::info!(
-            "Event filtered by cooling-down mechanism. Event ID: {}",
-            engin_event_id
-        );
-        let _: Result<(), _> = redis::cmd("SET")
-            .arg(&engin_event_id)
-            .arg(&engin_event_id)
-            .arg("EX")
-            .arg(600)
-            .query(&mut redis_conn);
+    timer.lap("prepare");
 
-        return Ok(Json(RespResult::ok_with_msg(format!(
-            "盒子上报信息: engin_event_id: {}, RESULT: Event filtered by cooling-down mechanism",
-            logging_engine_event_id
-        ))));
+    // 冷却时间逻辑校验
+    let cooling = handle_cooling_down_filter(app_state, payload, redis_conn).await;
+    timer.lap("cooling");
+    if cooling {
+        if event_log_svc::sampled(&logging_engine_event_id) {
+            tracing::info!(
+                "Event filtered by cooling-down mechanism. Event ID: {}",
+                logging_engine_event_id
+            );
+        }
+        return ReportDecision::Skip {
+            message: format!(
+                "盒子上报信息: engin_event_id: {}, RESULT: Event filtered by cooling-down mechanism",
+                logging_engine_event_id
+            ),
+            mark_processed: true,
+        };
     };
 
     // 检索base_config 配置信息
@@ -97,7 +423,7 @@ pub async fn post_box_report(
     .await
     .unwrap_or_default();
 
-    let filter_configs = event_filter_config_svc::find_event_filter_configs_by_project_id(
+    let filter_config = event_filter_config_svc::find_compiled_filter_config_by_project_id(
         &app_state.db,
         &app_state.redis_client,
         payload.project_id,
@@ -106,87 +432,72 @@ pub async fn post_box_report(
     .unwrap_or_default();
 
     let (shoud_filter, filter_reason) =
-        event_processing_svc::filter_event(&mut payload, &filter_configs, &mut redis_conn);
+        event_processing_svc::filter_event(payload, &filter_config, app_state.node_affinity, redis_conn);
+    timer.lap("filter");
 
+    // 如果是过滤事件直接落库, 并推送Kafka队列
     if shoud_filter {
+        metrics_svc::count_filtered(payload, filter_reason.unwrap_or(""));
         payload.marking = Some("filtered".to_string());
-        let mut event_model = event_from_payload(&payload, &task);
+        let mut event_model = event_from_payload(payload, task);
         event_model.filtered_type = filter_reason.map(String::from);
-
-        let _ = event_svc::create_event(&app_state.db, event_model)
-            .await
-            .map_err(|err| anyhow!(err))?;
-
-        push_to_kafka_filtered(app_state.clone(), &payload).await;
-        let _: Result<(), _> = redis::cmd("SET")
-            .arg(&engin_event_id)
-            .arg(&engin_event_id)
-            .arg("EX")
-            .arg(600)
-            .query(&mut redis_conn);
-        
-        // 如果是过滤事件直接入Kafka队列
-        push_to_kafka_filtered(app_state.clone(), &payload).await;
-        
-        return Ok(Json(RespResult::ok_with_msg(format!(
-            "盒子上报信息: engin_event_id: {}, RESULT: Invalid source",
-            logging_engine_event_id
-        ))));
+        return ReportDecision::Save {
+            event_model,
+            review_algorithm: None,
+            message: format!(
+                "盒子上报信息: engin_event_id: {}, RESULT: Invalid source",
+                logging_engine_event_id
+            ),
+        };
     }
 
     // unknown 数据直接落库
     if payload.marking.as_deref() == Some("unknown") {
-        let event_model = event_from_payload(&payload, &task);
-        let _ = event_svc::create_event(&app_state.db, event_model).await;
-        push_to_kafka_filtered(app_state.clone(), &payload).await;
-        let _: Result<(), _> = redis::cmd("SET")
-            .arg(&engin_event_id)
-            .arg(&engin_event_id)
-            .arg("EX")
-            .take()
-            .arg(600)
-            .query(&mut redis_conn);
-
-        return Ok(Json(RespResult::ok_with_msg(format!(
-            "盒子上报信息: engin_event_id: {}, RESULT: unknown event saved",
-            logging_engine_event_id
-        ))));
+        return ReportDecision::Save {
+            event_model: event_from_payload(payload, task),
+            review_algorithm: None,
+            message: format!(
+                "盒子上报信息: engin_event_id: {}, RESULT: unknown event saved",
+                logging_engine_event_id
+            ),
+        };
     };
 
     // 获取event_type 信息
     let Some(event_type) = payload.event_type.as_deref() else {
-        return Ok(Json(RespResult::ok_with_msg(format!(
-            "盒子上报信息: engin_event_id: {}, RESULT: 校验异常：Invalid event_type",
-            logging_engine_event_id
-        ))));
+        return ReportDecision::Skip {
+            message: format!(
+                "盒子上报信息: engin_event_id: {}, RESULT: 校验异常：Invalid event_type",
+                logging_engine_event_id
+            ),
+            mark_processed: false,
+        };
     };
 
     // 人审判断
-    let review_status = match algorithm_svc::find_algorithm_by_code(
-        &app_state.db,
-        &app_state.redis_client,
-        event_type,
-    )
-    .await
-    {
-        Ok(Some(algorithm)) => {
-            event_processing_svc::personnel_check(&payload, &algorithm, &mut redis_conn)
-        }
-        _ => {
-            return Ok(Json(RespResult::ok_with_msg(format!(
+    let Some(algorithm) = algorithms
+        .iter()
+        .find(|a| a.code.as_deref() == Some(event_type))
+    else {
+        return ReportDecision::Skip {
+            message: format!(
                 "盒子上报信息: engin_event_id: {}, RESULT: No algorithm found for event type. Skipping personnel check",
                 logging_engine_event_id
-            ))));
-        }
+            ),
+            mark_processed: false,
+        };
     };
+    let review_status = event_processing_svc::personnel_check(payload, algorithm, redis_conn);
+    timer.lap("personnel_check");
+
     // 执行人审判断判断
-    let mut event_model: event::Model = event_from_payload(&payload, &task);
-    let mut should_push_to_dq = false; // Flag to determine if we should call push_event_to_dq
+    let mut event_model: event::Model = event_from_payload(payload, task);
+    let mut review_algorithm = None; // Set when the event should be pushed to DQ after saving
 
     if review_status == event_processing_svc::PersonnelCheckResult::Enable {
         event_model.marking = Some("init".to_string());
         event_model.marking_time = Some(Local::now().naive_local());
-        should_push_to_dq = true;
+        review_algorithm = Some(algorithm.clone());
     } else {
         let mut extra = event_model.extra.unwrap_or(json!({}));
         let marking =
@@ -195,37 +506,61 @@ pub async fn post_box_report(
         event_model.extra = Some(extra);
         event_model.marking = Some("event".to_string());
     };
-    // 执行入库
-    let saved_event = event_svc::create_event(&app_state.db, event_model)
-        .await
-        .map_err(|err| anyhow!(err))?;
 
-    // If personnel check was enabled, now call push_event_to_dq with saved_event.id
-    if should_push_to_dq {
-        push_event_to_dq(app_state.clone(), &payload, &task, saved_event.id).await;
+    ReportDecision::Save {
+        event_model,
+        review_algorithm,
+        message: format!(
+            "盒子上报信息: engin_event_id: {}, RESULT：Event processed successfully",
+            logging_engine_event_id
+        ),
     }
+}
 
-    // 事件engin_event_id到Redis 防止重放
-    let _: Result<(), _> = redis::cmd("SET")
-        .arg(&payload.engine_event_id)
-        .arg(&payload.engine_event_id)
-        .arg("EX")
-        .arg(600)
-        .query(&mut redis_conn);
-
-    return Ok(Json(RespResult::ok_with_msg(format!(
-        "盒子上报信息: engin_event_id: {}, RESULT：Event processed successfully",
-        logging_engine_event_id
-    ))));
+/// Runs the follow-up pushes of an event persisted inside the request, awaited
+/// or in a task of their own depending on the push mode.
+async fn dispatch_after_report_saved(
+    app_state: &Arc<AppState>,
+    payload: &BoxReportRequest,
+    review_algorithm: Option<algorithm::Model>,
+    event_id: i64,
+) {
+    match app_state.push_mode {
+        PushMode::Inline => after_report_saved(app_state.clone(), payload, review_algorithm.as_ref(), event_id).await,
+        PushMode::Spawn => {
+            let (app_state, payload) = (app_state.clone(), payload.clone());
+            tokio::spawn(async move {
+                after_report_saved(app_state, &payload, review_algorithm.as_ref(), event_id).await;
+            });
+        }
+    }
+}
+
+/// Runs the follow-up pushes of a persisted event.
+pub(crate) async fn after_report_saved(
+    app_state: Arc<AppState>,
+    payload: &BoxReportRequest,
+    review_algorithm: Option<&algorithm::Model>,
+    event_id: i64,
+) {
+    // 过滤事件推送Kafka队列
+    push_to_kafka_filtered(&app_state, payload);
+    // If personnel check was enabled, now call push_event_to_dq with saved_event.id
+    if let Some(algorithm) = review_algorithm {
+        push_event_to_dq(app_state, payload, algorithm, event_id).await;
+    }
 }
 
 async fn push_event_to_dq(
     app_state: Arc<AppState>,
     payload: &BoxReportRequest,
-    _task: &task::Model, // Renamed to _task
+    algorithm: &algorithm::Model,
     event_id: i64,
 ) {
-    tracing::info!("Starting push_event_to_dq for event_id: {}", event_id);
+    let log_sampled = event_log_svc::sampled(payload.engine_event_id.as_deref().unwrap_or_default());
+    if log_sampled {
+        tracing::info!("Starting push_event_to_dq for event_id: {}", event_id);
+    }
     // Initialize reviewDataVo
     let mut review_data_vo = ReviewDataPushVo {
         id: event_id,
@@ -265,7 +600,7 @@ async fn push_event_to_dq(
     };
 
     // Process extraData
-    if let Some(origin_data) = payload.extra_data.clone() {
+    if let Some(origin_data) = payload.extra_data_value() {
         // position
         if let Some(position_array) = origin_data.get("position").and_then(|v| v.as_array()) {
             if !position_array.is_empty() {
@@ -307,32 +642,17 @@ async fn push_event_to_dq(
             }
         }
 
-        // Fetch algorithm for drawType and editable
-        if let Some(event_type) = payload.event_type.as_deref() {
-            // Note: The Java code uses project_id + event_type as a key for caching algorithms.
-            // Our algorithm_svc::find_algorithm_by_code currently takes only the code (event_type).
-            // This might be a simplification or a difference in cache key strategy.
-            // For now, we proceed with the existing `find_algorithm_by_code` signature.
-            if let Ok(Some(algorithm)) = algorithm_svc::find_algorithm_by_code(
-                &app_state.db,
-                &app_state.redis_client,
-                event_type,
-            )
-            .await
-            {
-                if let Some(draw_type) = algorithm.draw_type {
-                    original_config_json["drawType"] = json!(draw_type);
-                }
+        // drawType and editable of the algorithm resolved by the review decision
+        if let Some(draw_type) = algorithm.draw_type.as_ref() {
+            original_config_json["drawType"] = json!(draw_type);
+        }
 
-                if let Some(editable_config_value) = algorithm.editable_config {
-                    // Assuming editable_config_value is already a serde_json::Value
-                    if let Some(config_array) = editable_config_value
-                        .get("config")
-                        .and_then(|v| v.as_array())
-                    {
-                        review_data_vo.editable = Some(Value::Array(config_array.clone()));
-                    }
-                }
+        if let Some(editable_config_value) = algorithm.editable_config.as_ref() {
+            if let Some(config_array) = editable_config_value
+                .get("config")
+                .and_then(|v| v.as_array())
+            {
+                review_data_vo.editable = Some(Value::Array(config_array.clone()));
             }
         }
         review_data_vo.original_config = Some(original_config_json);
@@ -341,26 +661,38 @@ async fn push_event_to_dq(
     // Send to DQ service
     let dq_url = format!("{}/v1/dq-service/event/add", app_state.dq_service_url);
 
-    // Serialize the review_data_vo to JSON
-    let json_payload = match serde_json::to_value(&review_data_vo) {
+    // Serialize the review_data_vo to JSON once, for both the log and the request body
+    let json_payload = match serde_json::to_string(&review_data_vo) {
         Ok(json) => json,
         Err(e) => {
             tracing::error!("Failed to serialize ReviewDataPushVo to JSON: {}", e);
             return;
         }
     };
-    tracing::info!("Sending eventDto: {} to DQ service", json_payload);
-    // Create a reqwest client
-    let client = reqwest::Client::new();
-
+    if event_log_svc::full(payload) {
+        tracing::info!("Sending eventDto: {} to DQ service", json_payload);
+    } else if log_sampled {
+        tracing::info!("Sending eventDto to DQ service, event_id: {}", event_id);
+    }
     // Send the POST request
-    match client.post(&dq_url).json(&json_payload).send().await {
+    let started = Instant::now();
+    let _permit = app_state.downstream.dq.acquire().await;
+    match app_state
+        .http_client
+        .post(&dq_url)
+        .header(reqwest::header::CONTENT_TYPE, "application/json")
+        .body(json_payload)
+        .send()
+        .await
+    {
         Ok(response) => {
             if response.status().is_success() {
-                tracing::info!(
-                    "Successfully pushed event to DQ service for event ID: {}",
-                    event_id
-                );
+                if log_sampled {
+                    tracing::info!(
+                        "Successfully pushed event to DQ service for event ID: {}",
+                        event_id
+                    );
+                }
             } else {
                 let status = response.status();
                 let body = response.text().await.unwrap_or_default();
@@ -379,45 +711,29 @@ async fn push_event_to_dq(
             );
         }
     }
+    metrics_svc::observe_stage("push_dq", payload, Outcome::Dq, started.elapsed());
 }
 
 // --- Helper Functions ---
 
-/// Fetches task data and enriches the payload, mirroring `deposeBaseEventTaskData`.
-async fn enrich_payload_with_task_data(
-    app_state: &Arc<AppState>,
-    payload: &mut BoxReportRequest,
-) -> Result<task::Model> {
-    
+/// Finds the running task of a report, mirroring the task lookup of `deposeBaseEventTaskData`.
+fn find_task<'a>(tasks: &'a [task::Model], payload: &BoxReportRequest) -> Result<&'a task::Model> {
     let Some(task_code) = payload.task_code.as_deref() else {
         tracing::error!("Task code is missing in the payload.");
         return Err(anyhow!("Task code is missing in the payload."));
     };
 
-    let task = task_svc::find_running_tasks_by_criteria(
-        &app_state.db,
-        &app_state.redis_client,
-        task_svc::TaskSearchCriteria {
-            code: Some(task_code),
-            ..Default::default()
-        },
-    )
-    .await;
-
-    match task {
-        Ok(tasks) if !tasks.is_empty() => {
-            let task = tasks.into_iter().next().unwrap();
-            Ok(task)
-        }
-        _ => Err(anyhow!("获取task {:?} 缓存信息失败", task_code)), // Return concrete error type
-    }
+    tasks
+        .iter()
+        .find(|t| t.code.as_deref() == Some(task_code))
+        .ok_or_else(|| anyhow!("获取task {:?} 缓存信息失败", task_code))
 }
 
 /// Implements the event type cooling-down filter.
 async fn handle_cooling_down_filter(
     app_state: &Arc<AppState>,
     vo: &BoxReportRequest,
-    redis_conn: &mut impl Commands,
+    redis_conn: &mut redis::Connection,
 ) -> bool {
     // This config is global in Java, so we get it from the app state.
     // Assuming `app_state.filter_events_config` holds `{ "is_open": true, "event_types": "7021,7022" }`
@@ -445,15 +761,10 @@ async fn handle_cooling_down_filter(
         return false;
     }
     let Some(cooling_second) = vo
-        .extra_data
+        .extra_slots
+        .alg_param
         .as_ref()
-        .and_then(|ed| ed.get("originalConfig"))
-        .and_then(|oc| oc.get("algList"))
-        .and_then(|al| al.as_array())
-        .and_then(|alg_list| alg_list.get(vo.original_violation_index.unwrap_or(0) as usize))
-        .and_then(|alg_item| alg_item.get("algParam"))
-        .and_then(|ap| ap.get("cooling_second"))
-        .and_then(|cs| cs.as_i64())
+        .and_then(|ap| ap.cooling_second)
     else {
         return false;
     };
@@ -461,95 +772,37 @@ async fn handle_cooling_down_filter(
         return false;
     }
 
-    let redis_key = format!(
-        "FILTER_EVENT_TYPE:_{}_{}",
-        vo.task_code.as_deref().unwrap_or(""),
-        current_event_type
-    );
-    if let Ok(value_str) = redis_conn.get::<_, String>(&redis_key) {
-        let parts: Vec<&str> = value_str.split('@').collect();
-        if parts.len() == 2 {
-            let old_cooling = parts[0].parse::<i64>().unwrap_or(0);
-            let old_timestamp_ms = parts[1].parse::<i64>().unwrap_or(0);
-            if old_cooling == cooling_second {
-                return true;
-            }
-
-            let old_event_time_dt_utc = Utc.timestamp_millis_opt(old_timestamp_ms).single();
-
-            if let (Some(event_time), Some(dt_utc)) = (vo.event_time, old_event_time_dt_utc) {
-                let old_event_time_naive = dt_utc.naive_utc();
-                if event_time.naive_utc()
-                    <= (old_event_time_naive + Duration::seconds(cooling_second))
-                {
-                    return true;
-                }
-            }
-        }
-    }
-
-    if let Some(event_time) = vo.event_time {
-        let expiry_seconds = ((event_time + Duration::seconds(cooling_second)) - Utc::now())
-            .num_seconds()
-            .max(1); // Ensure min 1 second TTL
-        let new_value = format!("{}@{}", cooling_second, event_time.timestamp_millis());
-        let _: Result<(), _> = redis_conn.set_ex(redis_key, new_value, expiry_seconds as u64);
-    }
-
-    false
+    let task_code = vo.task_code.as_deref().unwrap_or("");
+    let event_time_ms = vo.event_time.map(|t| t.timestamp_millis());
+    app_state
+        .cooldown_store
+        .check_and_start(task_code, current_event_type, cooling_second, event_time_ms, redis_conn)
 }
 
-/// Simulates pushing the event to a "filtered" Kafka topic.
-async fn push_to_kafka_filtered(app_state: Arc<AppState>, payload: &BoxReportRequest) {
+/// Pushes a filtered event to the filtered-events Kafka topic, keyed by task
+/// so the events of a task stay in order. Delivery is reported asynchronously.
+fn push_to_kafka_filtered(app_state: &AppState, payload: &BoxReportRequest) {
     if payload.marking.as_deref() == Some("filtered") {
-        let topic = "PLATFORM_CUSTOMER_META_EVENTS_FILTERED";
-        let url = format!(
-            "{}/v1/message/center/mq/produce/topic/{}",
-            app_state.message_center_url, topic
-        );
-
-        // Serialize the payload to JSON
-        let Ok(json_payload) = serde_json::to_value(payload) else {
-            tracing::error!("Failed to serialize payload to JSON");
-            return;
-        };
-
-        // Create a reqwest client
-        let client = reqwest::Client::new();
-
-        // Send the POST request
-        let Ok(response) = client.post(&url).json(&json_payload).send().await else {
-            tracing::error!(
-                "Failed to send HTTP request to Message Center API for Kafka topic '{}', reviewData.eventId:{}",
-                topic,
-                payload.id.unwrap_or_default()
-            );
-            return;
-        };
-        if response.status().is_success() {
-            tracing::info!(
-                "Successfully pushed event to Kafka topic '{}' via Message Center API for event ID: {}",
-                topic,
-                payload.engine_event_id.as_deref().unwrap_or("")
-            );
-        } else {
-            let status = response.status();
-            let body = response.text().await.unwrap_or_default();
-            tracing::error!(
-                "Failed to push event to Kafka topic '{}' via Message Center API. Status: {}, Body: {}",
-                topic,
-                status,
-                body
-            );
+        let value = match serde_json::to_vec(payload) {
+            Ok(value) => value,
+            Err(err) => {
+                tracing::error!("Failed to serialize filtered event to JSON: {}", err);
+                return;
+            }
         };
+        app_state.mq_producer.send(
+            mq_svc::TOPIC_EVENTS_FILTERED,
+            payload.task_code.clone(),
+            value,
+            payload.engine_event_id.clone().unwrap_or_default(),
+        );
     }
 }
 
 /// Maps the final request payload and task data to the database event model.
 fn event_from_payload(payload: &BoxReportRequest, task: &task::Model) -> event::Model {
-    let generated_id = Local::now().timestamp_millis();
     event::Model {
-        id: payload.id.unwrap_or(generated_id),
+        id: payload.id.unwrap_or_else(next_event_id),
         project_id: Some(payload.project_id),
         project_name: Some(payload.project_name.clone()),
         task_code: payload.task_code.clone(),
@@ -558,7 +811,8 @@ fn event_from_payload(payload: &BoxReportRequest, task: &task::Model) -> event::
         source: payload.source.clone(),
         event_type: payload.event_type.clone(),
         event_type_name: payload.event_type_name.clone(),
-        event_time: payload.event_time.map(|dt| dt.naive_local()),
+        // event_time 是分区键, 不能为空, 没带时间的上报用接收时间
+        event_time: Some(payload.event_time.unwrap_or_else(Utc::now).naive_utc()),
         end_time: payload.end_time.map(|dt| dt.naive_local()),
         marking: payload.marking.clone(),
         engine_event_id: payload.engine_event_id.clone(),
@@ -571,7 +825,7 @@ fn event_from_payload(payload: &BoxReportRequest, task: &task::Model) -> event::
         snapshot_uri_compress: payload.snapshot_uri_compress.clone(),
         snapshot_uri_raw_compress: payload.snapshot_uri_raw_compress.clone(),
         snapshot_uri_cover_compress: payload.snapshot_uri_cover_compress.clone(),
-        extra_data: payload.extra_data.clone(),
+        extra_data: payload.extra_data_value(),
         camera_code: payload.camera_code.clone(),
         evidence_status: payload.evidence_status.clone(),
         evidence_url: payload.evidence_url.clone(),
@@ -595,3 +849,14 @@ fn event_from_payload(payload: &BoxReportRequest, task: &task::Model) -> event::
         is_del: 0,
     }
 }
+
+/// Generates event ids from the current millis, kept strictly increasing so
+/// that events of the same batch never share an id.
+fn next_event_id() -> i64 {
+    static LAST_EVENT_ID: AtomicI64 = AtomicI64::new(0);
+    let now = Local::now().timestamp_millis();
+    let previous = LAST_EVENT_ID
+        .fetch_update(Ordering::SeqCst, Ordering::SeqCst, |last| Some(now.max(last + 1)))
+        .unwrap_or(now);
+    now.max(previous + 1)
+}
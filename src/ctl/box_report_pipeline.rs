@@ -0,0 +1,596 @@
+//! Staged asynchronous ingest of box reports.
+//!
+//! In pipeline mode a report is answered as soon as it is validated, claimed
+//! and queued. Decision, persistence and pushes run as separate stages behind
+//! bounded queues: a slow stage fills its queue and blocks the stage in front
+//! of it, until the ingress queue is full and new reports are rejected with a
+//! business error, so boxes back off and retry instead of piling up handlers.
+//!
+//! Reports are appended to a journal before they are acknowledged and
+//! checkpointed once pushed (or skipped). A stored event whose pushes were cut
+//! short by a crash is pushed again on replay. A decided report is journaled
+//! again with its decision, so a replay takes it straight to the persist stage
+//! instead of running the stateful filters on it a second time.
+//! Unacknowledged reports are replayed on startup, and inserts failing on an
+//! unavailable database are retried instead of dropped; rows the database
+//! rejects are parked. The box is answered before its report is stored, so the
+//! pipeline never runs without the journal.
+
+use std::sync::Arc;
+use std::sync::atomic::{AtomicU64, AtomicUsize, Ordering};
+use std::time::{Duration, Instant};
+
+use axum::{extract::State, response::Json};
+use serde::{Deserialize, Serialize};
+use tokio::sync::{Semaphore, mpsc};
+
+use crate::{
+    app_state::AppState,
+    ctl::{
+        box_report_ctl::{self, ReportDecision, Unavailable},
+        bs_model::BoxReportRequest,
+    },
+    models::{algorithm, event},
+    service::{
+        dedup_svc::{self, ReplayClaim},
+        event_log_svc,
+        event_svc,
+        metrics_svc::{self, Outcome},
+        journal_svc::{Journal, PendingRecord},
+        recent_event_svc,
+    },
+};
+use event_rs::{JsonResponse, response_result::RespResult};
+
+/// Queue sizes and worker limits of the pipeline.
+#[derive(Debug, Clone)]
+pub struct PipelineConfig {
+    /// Capacity of each stage queue.
+    pub queue_capacity: usize,
+    /// Reports decided or pushed concurrently.
+    pub concurrency: usize,
+    /// Maximum events written by one multi-row insert.
+    pub persist_batch_size: usize,
+}
+
+const RETRY_MIN: Duration = Duration::from_millis(500);
+const RETRY_MAX: Duration = Duration::from_secs(30);
+
+/// A validated and claimed report, waiting for the decision stage.
+pub struct AcceptedReport {
+    pub payload: BoxReportRequest,
+    pub claim: (String, ReplayClaim),
+    journal_seq: Option<u64>,
+}
+
+impl AcceptedReport {
+    pub fn new(payload: BoxReportRequest, claim: (String, ReplayClaim)) -> Self {
+        Self { payload, claim, journal_seq: None }
+    }
+}
+
+/// A report whose event is to be persisted and then pushed.
+struct DecidedReport {
+    payload: BoxReportRequest,
+    claim: (String, ReplayClaim),
+    journal_seq: Option<u64>,
+    event_model: event::Model,
+    review_algorithm: Option<algorithm::Model>,
+}
+
+/// Journal form of an accepted report. Once decided, the report is journaled
+/// again with its decision, so a replay never runs the stateful filters twice.
+#[derive(Serialize)]
+#[serde(rename_all = "camelCase")]
+struct JournalEntryRef<'a> {
+    claim_id: &'a str,
+    locally_new: bool,
+    payload: &'a BoxReportRequest,
+    #[serde(skip_serializing_if = "Option::is_none")]
+    decided: Option<DecisionRef<'a>>,
+}
+
+#[derive(Serialize)]
+#[serde(rename_all = "camelCase")]
+struct DecisionRef<'a> {
+    event_model: &'a event::Model,
+    review_algorithm: Option<&'a algorithm::Model>,
+}
+
+#[derive(Deserialize)]
+#[serde(rename_all = "camelCase")]
+struct JournalEntry {
+    claim_id: String,
+    locally_new: bool,
+    payload: BoxReportRequest,
+    #[serde(default)]
+    decided: Option<Decision>,
+}
+
+#[derive(Deserialize)]
+#[serde(rename_all = "camelCase")]
+struct Decision {
+    event_model: event::Model,
+    review_algorithm: Option<algorithm::Model>,
+}
+
+struct Staged<T> {
+    item: T,
+    enqueued_at: Instant,
+}
+
+impl<T> Staged<T> {
+    fn new(item: T) -> Self {
+        Self { item, enqueued_at: Instant::now() }
+    }
+}
+
+/// Counters of one stage. Latency is measured from enqueue to the end of the stage.
+#[derive(Default)]
+struct StageStats {
+    depth: AtomicUsize,
+    processed: AtomicU64,
+    failed: AtomicU64,
+    latency_total_us: AtomicU64,
+    latency_max_us: AtomicU64,
+}
+
+impl StageStats {
+    fn enqueued(&self) {
+        self.depth.fetch_add(1, Ordering::Relaxed);
+    }
+
+    fn dequeued(&self, count: usize) {
+        self.depth.fetch_sub(count, Ordering::Relaxed);
+    }
+
+    fn finished(&self, enqueued_at: Instant, ok: bool) {
+        let elapsed_us = enqueued_at.elapsed().as_micros() as u64;
+        if ok {
+            self.processed.fetch_add(1, Ordering::Relaxed);
+        } else {
+            self.failed.fetch_add(1, Ordering::Relaxed);
+        }
+        self.latency_total_us.fetch_add(elapsed_us, Ordering::Relaxed);
+        self.latency_max_us.fetch_max(elapsed_us, Ordering::Relaxed);
+    }
+
+    fn snapshot(&self, stage: &'static str, capacity: usize) -> StageSnapshot {
+        let processed = self.processed.load(Ordering::Relaxed);
+        let failed = self.failed.load(Ordering::Relaxed);
+        let total_us = self.latency_total_us.load(Ordering::Relaxed);
+        let finished = processed + failed;
+        StageSnapshot {
+            stage,
+            capacity,
+            depth: self.depth.load(Ordering::Relaxed),
+            processed,
+            failed,
+            avg_latency_ms: if finished == 0 { 0.0 } else { total_us as f64 / finished as f64 / 1000.0 },
+            max_latency_ms: self.latency_max_us.load(Ordering::Relaxed) as f64 / 1000.0,
+        }
+    }
+}
+
+#[derive(Default)]
+struct PipelineStats {
+    decide: StageStats,
+    persist: StageStats,
+    push: StageStats,
+    rejected: AtomicU64,
+}
+
+#[derive(Debug, Serialize)]
+#[serde(rename_all = "camelCase")]
+pub struct StageSnapshot {
+    pub stage: &'static str,
+    pub capacity: usize,
+    pub depth: usize,
+    pub processed: u64,
+    pub failed: u64,
+    pub avg_latency_ms: f64,
+    pub max_latency_ms: f64,
+}
+
+#[derive(Debug, Serialize)]
+#[serde(rename_all = "camelCase")]
+pub struct PipelineSnapshot {
+    pub rejected: u64,
+    pub stages: Vec<StageSnapshot>,
+}
+
+/// Ingress handle of the pipeline, shared through `AppState`.
+#[derive(Clone)]
+pub struct Pipeline {
+    ingress: mpsc::Sender<Staged<AcceptedReport>>,
+    /// Replayed reports that were already decided skip the decide stage.
+    persist: mpsc::Sender<Staged<DecidedReport>>,
+    stats: Arc<PipelineStats>,
+    capacity: usize,
+    journal: Arc<Journal>,
+}
+
+/// Stage queues and workers, started once `AppState` exists.
+pub struct PipelineWorkers {
+    config: PipelineConfig,
+    stats: Arc<PipelineStats>,
+    journal: Arc<Journal>,
+    decide_rx: mpsc::Receiver<Staged<AcceptedReport>>,
+    persist_tx: mpsc::Sender<Staged<DecidedReport>>,
+    persist_rx: mpsc::Receiver<Staged<DecidedReport>>,
+    push_tx: mpsc::Sender<Staged<DecidedReport>>,
+    push_rx: mpsc::Receiver<Staged<DecidedReport>>,
+}
+
+impl Pipeline {
+    pub fn new(config: PipelineConfig, journal: Arc<Journal>) -> (Self, PipelineWorkers) {
+        let stats = Arc::new(PipelineStats::default());
+        let (ingress, decide_rx) = mpsc::channel(config.queue_capacity);
+        let (persist_tx, persist_rx) = mpsc::channel(config.queue_capacity);
+        let (push_tx, push_rx) = mpsc::channel(config.queue_capacity);
+        let pipeline = Self {
+            ingress,
+            persist: persist_tx.clone(),
+            stats: stats.clone(),
+            capacity: config.queue_capacity,
+            journal: journal.clone(),
+        };
+        let workers = PipelineWorkers { config, stats, journal, decide_rx, persist_tx, persist_rx, push_tx, push_rx };
+        (pipeline, workers)
+    }
+
+    /// Journals and queues a claimed report. Hands it back when it could not be
+    /// journaled or the ingress queue is full.
+    pub fn submit(&self, mut report: AcceptedReport) -> Result<(), AcceptedReport> {
+        let entry = JournalEntryRef {
+            claim_id: &report.claim.0,
+            locally_new: report.claim.1 == ReplayClaim::LocallyNew,
+            payload: &report.payload,
+            decided: None,
+        };
+        let appended = serde_json::to_vec(&entry)
+            .map_err(anyhow::Error::from)
+            .and_then(|bytes| self.journal.append(&bytes));
+        match appended {
+            Ok(seq) => report.journal_seq = Some(seq),
+            Err(err) => {
+                tracing::error!("pipeline journal append failed: {}, engin_event_id: {}", err, report.claim.0);
+                self.stats.rejected.fetch_add(1, Ordering::Relaxed);
+                return Err(report);
+            }
+        }
+
+        self.stats.decide.enqueued();
+        match self.ingress.try_send(Staged::new(report)) {
+            Ok(()) => Ok(()),
+            Err(err) => {
+                self.stats.decide.dequeued(1);
+                self.stats.rejected.fetch_add(1, Ordering::Relaxed);
+                let report = err.into_inner().item;
+                ack_journal(&self.journal, report.journal_seq);
+                Err(report)
+            }
+        }
+    }
+
+    /// Requeues the journal records left unacknowledged by the previous run.
+    /// Waits for room in the ingress queue instead of rejecting.
+    pub async fn replay(&self, records: Vec<PendingRecord>) {
+        for record in records {
+            let entry = match serde_json::from_slice::<JournalEntry>(&record.data) {
+                Ok(entry) => entry,
+                Err(err) => {
+                    tracing::warn!("pipeline journal record {} is unreadable, dropping it: {}", record.seq, err);
+                    ack_journal(&self.journal, Some(record.seq));
+                    continue;
+                }
+            };
+            let claim = if entry.locally_new { ReplayClaim::LocallyNew } else { ReplayClaim::Claimed };
+            let claim = (entry.claim_id, claim);
+            let mut payload = entry.payload;
+            if let Some(Decision { event_model, review_algorithm }) = entry.decided {
+                // 已做过判定的直接入库, 冷却和过滤的状态里已经记着这条上报
+                payload.decode_extra_data();
+                let report = DecidedReport { payload, claim, journal_seq: Some(record.seq), event_model, review_algorithm };
+                self.stats.persist.enqueued();
+                if self.persist.send(Staged::new(report)).await.is_err() {
+                    self.stats.persist.dequeued(1);
+                    return;
+                }
+                continue;
+            }
+            let report = AcceptedReport { payload, claim, journal_seq: Some(record.seq) };
+            self.stats.decide.enqueued();
+            if self.ingress.send(Staged::new(report)).await.is_err() {
+                self.stats.decide.dequeued(1);
+                return;
+            }
+        }
+    }
+
+    pub fn snapshot(&self) -> PipelineSnapshot {
+        PipelineSnapshot {
+            rejected: self.stats.rejected.load(Ordering::Relaxed),
+            stages: vec![
+                self.stats.decide.snapshot("decide", self.capacity),
+                self.stats.persist.snapshot("persist", self.capacity),
+                self.stats.push.snapshot("push", self.capacity),
+            ],
+        }
+    }
+}
+
+impl PipelineWorkers {
+    pub fn spawn(self, app_state: Arc<AppState>) {
+        let PipelineWorkers { config, stats, journal, decide_rx, persist_tx, persist_rx, push_tx, push_rx } = self;
+        tokio::spawn(run_decide_stage(app_state.clone(), decide_rx, persist_tx, stats.clone(), journal.clone(), config.concurrency));
+        tokio::spawn(run_persist_stage(app_state.clone(), persist_rx, push_tx, stats.clone(), journal.clone(), config.persist_batch_size));
+        tokio::spawn(run_push_stage(app_state, push_rx, stats, journal, config.concurrency));
+    }
+}
+
+/// Runs cooling, filtering and review decisions. Waiting for room in the
+/// persist queue holds the worker permit, which is what propagates backpressure.
+async fn run_decide_stage(
+    app_state: Arc<AppState>,
+    mut rx: mpsc::Receiver<Staged<AcceptedReport>>,
+    persist_tx: mpsc::Sender<Staged<DecidedReport>>,
+    stats: Arc<PipelineStats>,
+    journal: Arc<Journal>,
+    concurrency: usize,
+) {
+    let permits = Arc::new(Semaphore::new(concurrency));
+    while let Some(staged) = rx.recv().await {
+        stats.decide.dequeued(1);
+        let Ok(permit) = permits.clone().acquire_owned().await else { break };
+        let (app_state, persist_tx, stats, journal) =
+            (app_state.clone(), persist_tx.clone(), stats.clone(), journal.clone());
+        tokio::spawn(async move {
+            let Staged { item: AcceptedReport { mut payload, claim, journal_seq }, enqueued_at } = staged;
+            metrics_svc::observe_queue_wait("pipeline_decide", enqueued_at.elapsed());
+            // 盒子已收到应答不会重发: 临时故障时退避重试, 只有确定无法处理的才确认日志
+            let mut backoff = RETRY_MIN;
+            let (decision, mut redis_conn) = loop {
+                let err = match app_state.redis_client.get_connection() {
+                    Ok(mut conn) => match box_report_ctl::resolve_and_decide(&app_state, &mut payload, &mut conn).await {
+                        Err(err) if err.is::<Unavailable>() => err,
+                        decision => break (decision, conn),
+                    },
+                    Err(err) => anyhow::anyhow!("Redis connection error: {}", err),
+                };
+                tracing::warn!("pipeline decide, retrying in {:?}: {}, engin_event_id: {}", backoff, err, claim.0);
+                tokio::time::sleep(backoff).await;
+                backoff = (backoff * 2).min(RETRY_MAX);
+            };
+
+            match decision {
+                Ok(ReportDecision::Skip { message, mark_processed }) => {
+                    if event_log_svc::sampled(&claim.0) {
+                        tracing::info!("{}", message);
+                    }
+                    if mark_processed {
+                        dedup_svc::confirm(&mut redis_conn, &[claim]);
+                    } else {
+                        dedup_svc::release(&mut redis_conn, &[claim]);
+                    }
+                    ack_journal(&journal, journal_seq);
+                    stats.decide.finished(enqueued_at, true);
+                }
+                Ok(ReportDecision::Save { event_model, review_algorithm, .. }) => {
+                    stats.decide.finished(enqueued_at, true);
+                    let journal_seq = journal_decision(&journal, &payload, &claim, journal_seq, &event_model, review_algorithm.as_ref());
+                    stats.persist.enqueued();
+                    let decided = DecidedReport { payload, claim, journal_seq, event_model, review_algorithm };
+                    if let Err(err) = persist_tx.send(Staged::new(decided)).await {
+                        stats.persist.dequeued(1);
+                        dedup_svc::release(&mut redis_conn, &[err.0.item.claim]);
+                    }
+                }
+                Err(err) => {
+                    // 任务不存在等永久性拒绝
+                    tracing::error!("pipeline decide rejected: {}, engin_event_id: {}", err, claim.0);
+                    dedup_svc::release(&mut redis_conn, &[claim]);
+                    ack_journal(&journal, journal_seq);
+                    stats.decide.finished(enqueued_at, false);
+                }
+            }
+            drop(permit);
+        });
+    }
+}
+
+/// Drains whatever is queued, up to one batch, into a single multi-row insert.
+/// Batches are retried with backoff while the database is unavailable, which
+/// also holds back the stages in front through the full queues. Rows that
+/// fail because of their data are parked instead of blocking the stage.
+async fn run_persist_stage(
+    app_state: Arc<AppState>,
+    mut rx: mpsc::Receiver<Staged<DecidedReport>>,
+    push_tx: mpsc::Sender<Staged<DecidedReport>>,
+    stats: Arc<PipelineStats>,
+    journal: Arc<Journal>,
+    batch_size: usize,
+) {
+    let mut batch = Vec::with_capacity(batch_size);
+    while rx.recv_many(&mut batch, batch_size).await > 0 {
+        stats.persist.dequeued(batch.len());
+        for staged in &batch {
+            metrics_svc::observe_queue_wait("pipeline_persist", staged.enqueued_at.elapsed());
+        }
+        let started = Instant::now();
+        let (stored, parked) = persist_batch(&app_state, std::mem::take(&mut batch)).await;
+
+        let elapsed = started.elapsed();
+        let mut released = Vec::new();
+        for staged in parked {
+            stats.persist.finished(staged.enqueued_at, false);
+            metrics_svc::observe_stage("save", &staged.item.payload, Outcome::Failed, elapsed);
+            park_report(&journal, &staged.item);
+            released.push(staged.item.claim);
+        }
+        for staged in stored {
+            stats.persist.finished(staged.enqueued_at, true);
+            let outcome = Outcome::of_marking(staged.item.event_model.marking.as_deref());
+            metrics_svc::observe_stage("save", &staged.item.payload, outcome, elapsed);
+            recent_event_svc::record_saved(&staged.item.event_model);
+            // 推送完成后才确认日志, 崩溃后重放会补推
+            stats.push.enqueued();
+            if let Err(err) = push_tx.send(Staged::new(staged.item)).await {
+                stats.push.dequeued(1);
+                released.push(err.0.item.claim);
+            }
+        }
+        release_claims(&app_state, &released);
+    }
+}
+
+/// Inserts the batch with one statement. When that fails the rows are
+/// inserted one by one, like the event writer does, and split into stored
+/// rows and rows that failed because of their data. While the database is
+/// unavailable the remaining rows are retried with backoff.
+async fn persist_batch(
+    app_state: &AppState,
+    mut remaining: Vec<Staged<DecidedReport>>,
+) -> (Vec<Staged<DecidedReport>>, Vec<Staged<DecidedReport>>) {
+    let (mut stored, mut parked) = (Vec::new(), Vec::new());
+    let mut backoff = RETRY_MIN;
+    loop {
+        let models: Vec<event::Model> = remaining.iter().map(|s| s.item.event_model.clone()).collect();
+        match event_svc::create_events(&app_state.db, models).await {
+            Ok(()) => {
+                stored.append(&mut remaining);
+                return (stored, parked);
+            }
+            Err(err) => tracing::warn!("pipeline persist of {} events failed, inserting one by one: {}", remaining.len(), err),
+        }
+
+        let mut retry = Vec::new();
+        for staged in remaining.drain(..) {
+            // 数据库不可用后其余行不再逐条尝试, 留到下一轮
+            if !retry.is_empty() {
+                retry.push(staged);
+                continue;
+            }
+            match event_svc::insert_event(&app_state.db, staged.item.event_model.clone()).await {
+                Ok(()) => stored.push(staged),
+                // 重放的上报可能在崩溃前已经入库
+                Err(err) if event_svc::is_duplicate(&err) => stored.push(staged),
+                Err(err) if event_svc::is_transient(&err) => {
+                    tracing::error!("pipeline persist failed, retrying in {:?}: {}", backoff, err);
+                    retry.push(staged);
+                }
+                Err(err) => {
+                    tracing::error!("pipeline persist rejected event, engin_event_id: {}, err: {}", staged.item.claim.0, err);
+                    parked.push(staged);
+                }
+            }
+        }
+        if retry.is_empty() {
+            return (stored, parked);
+        }
+        remaining = retry;
+        tokio::time::sleep(backoff).await;
+        backoff = (backoff * 2).min(RETRY_MAX);
+    }
+}
+
+/// Parks a report whose event can never be stored, see `Journal::park`.
+fn park_report(journal: &Journal, report: &DecidedReport) {
+    let Some(seq) = report.journal_seq else { return };
+    let parked = serde_json::to_vec(&report.event_model)
+        .map_err(anyhow::Error::from)
+        .and_then(|line| journal.park(seq, &line));
+    if let Err(err) = parked {
+        tracing::error!("pipeline park failed, left for replay: {}, engin_event_id: {}", err, report.claim.0);
+    }
+}
+
+/// Pushes persisted events to Kafka and DQ, then makes their replay claims
+/// visible and acknowledges their journal records.
+async fn run_push_stage(
+    app_state: Arc<AppState>,
+    mut rx: mpsc::Receiver<Staged<DecidedReport>>,
+    stats: Arc<PipelineStats>,
+    journal: Arc<Journal>,
+    concurrency: usize,
+) {
+    let permits = Arc::new(Semaphore::new(concurrency));
+    while let Some(staged) = rx.recv().await {
+        stats.push.dequeued(1);
+        let Ok(permit) = permits.clone().acquire_owned().await else { break };
+        let (app_state, stats, journal) = (app_state.clone(), stats.clone(), journal.clone());
+        tokio::spawn(async move {
+            let Staged { item, enqueued_at } = staged;
+            metrics_svc::observe_queue_wait("pipeline_push", enqueued_at.elapsed());
+            box_report_ctl::after_report_saved(
+                app_state.clone(),
+                &item.payload,
+                item.review_algorithm.as_ref(),
+                item.event_model.id,
+            )
+            .await;
+            if let Ok(mut redis_conn) = app_state.redis_client.get_connection() {
+                dedup_svc::confirm(&mut redis_conn, &[item.claim]);
+            }
+            ack_journal(&journal, item.journal_seq);
+            stats.push.finished(enqueued_at, true);
+            drop(permit);
+        });
+    }
+}
+
+/// Journals the decision of a report and acknowledges its accepted record.
+/// Returns the sequence number that now stands for the report. When the
+/// decision cannot be journaled the accepted record is kept instead.
+fn journal_decision(
+    journal: &Journal,
+    payload: &BoxReportRequest,
+    claim: &(String, ReplayClaim),
+    accepted_seq: Option<u64>,
+    event_model: &event::Model,
+    review_algorithm: Option<&algorithm::Model>,
+) -> Option<u64> {
+    let entry = JournalEntryRef {
+        claim_id: &claim.0,
+        locally_new: claim.1 == ReplayClaim::LocallyNew,
+        payload,
+        decided: Some(DecisionRef { event_model, review_algorithm }),
+    };
+    let appended = serde_json::to_vec(&entry)
+        .map_err(anyhow::Error::from)
+        .and_then(|bytes| journal.append(&bytes));
+    match appended {
+        Ok(seq) => {
+            ack_journal(journal, accepted_seq);
+            Some(seq)
+        }
+        Err(err) => {
+            tracing::warn!("pipeline journal of the decision failed: {}, engin_event_id: {}", err, claim.0);
+            accepted_seq
+        }
+    }
+}
+
+fn ack_journal(journal: &Journal, seq: Option<u64>) {
+    if let Some(seq) = seq {
+        journal.ack(seq);
+    }
+}
+
+fn release_claims(app_state: &AppState, claims: &[(String, ReplayClaim)]) {
+    if claims.is_empty() {
+        return;
+    }
+    match app_state.redis_client.get_connection() {
+        Ok(mut redis_conn) => dedup_svc::release(&mut redis_conn, claims),
+        Err(err) => tracing::error!("pipeline release, Redis connection error: {}", err),
+    }
+}
+
+/// Queue depth, throughput and latency of each pipeline stage.
+pub async fn get_pipeline_stats(
+    State(app_state): State<Arc<AppState>>,
+) -> JsonResponse<Option<PipelineSnapshot>> {
+    let snapshot = app_state.pipeline.as_ref().map(Pipeline::snapshot);
+    Ok(Json(RespResult::ok(snapshot)))
+}
@@ -1,6 +1,7 @@
 use chrono::Utc;
 use serde::{Deserialize, Serialize};
 use serde_json::Value;
+use serde_json::value::RawValue;
 
 
 
@@ -29,13 +30,16 @@ pub struct BoxReportRequest {
     pub snapshot_uri_compress: Option<String>,
     pub snapshot_uri_raw_compress: Option<String>,
     pub snapshot_uri_cover_compress: Option<String>,
-    pub extra_data: Option<Value>,
+    /// Kept as the raw json for persistence; the hot path reads `extra_slots`.
+    pub extra_data: Option<Box<RawValue>>,
     pub camera_code: Option<String>,
     pub evidence_status: Option<String>,
     pub evidence_url: Option<String>,
     pub original_violation_index: Option<i32>,
     pub extra: Option<Value>,
     // --- Fields to be populated internally ---
+    #[serde(skip)]
+    pub extra_slots: ExtraDataSlots,
     #[serde(default)]
     pub project_id: i64,
     #[serde(default)]
@@ -44,8 +48,154 @@ pub struct BoxReportRequest {
     pub company_id: i64,
     #[serde(default)]
     pub company_name: String,
+    /// Resolved from the camera directory for weighbridge tasks.
+    #[serde(default)]
+    pub camera_code_name: Option<String>,
+}
+
+impl BoxReportRequest {
+    /// Decodes the hot-path fields of `extra_data` into `extra_slots`.
+    /// Only the needed paths are visited; the rest of the json is skipped without allocating.
+    pub fn decode_extra_data(&mut self) {
+        self.extra_slots = self
+            .extra_data
+            .as_deref()
+            .map(|raw| ExtraDataSlots::decode(raw, self.original_violation_index.unwrap_or(0)))
+            .unwrap_or_default();
+    }
+
+    /// Materialises `extra_data` as a json tree, for persistence and the DQ push.
+    pub fn extra_data_value(&self) -> Option<Value> {
+        self.extra_data
+            .as_deref()
+            .and_then(|raw| serde_json::from_str(raw.get()).ok())
+    }
+}
+
+/// The fields of `extraData` read on the hot path, decoded once per event.
+#[derive(Debug, Default, Clone)]
+pub struct ExtraDataSlots {
+    /// `originalConfig.algList[originalViolationIndex].algParam`
+    pub alg_param: Option<AlgParamSlots>,
+    pub plate_number_score: Option<f64>,
+    /// `summary."plate/type".label`
+    pub plate_type_label: Option<String>,
+    pub position: Option<Vec<f64>>,
+    /// `eventResult.result`
+    pub event_result: Option<String>,
+}
+
+#[derive(Debug, Default, Clone)]
+pub struct AlgParamSlots {
+    pub cooling_second: Option<i64>,
+    pub is_open_dq: Option<i64>,
+    /// Kept raw, it identifies the compiled DQ window.
+    pub open_dq_time: Option<Box<RawValue>>,
+}
+
+#[derive(Deserialize)]
+#[serde(rename_all = "camelCase")]
+struct ExtraDataView<'a> {
+    #[serde(borrow, default)]
+    original_config: Option<&'a RawValue>,
+    #[serde(borrow, default)]
+    plate_number_score: Option<&'a RawValue>,
+    #[serde(borrow, default)]
+    summary: Option<&'a RawValue>,
+    #[serde(borrow, default)]
+    position: Option<&'a RawValue>,
+    #[serde(borrow, default)]
+    event_result: Option<&'a RawValue>,
+}
+
+#[derive(Deserialize)]
+#[serde(rename_all = "camelCase")]
+struct OriginalConfigView<'a> {
+    #[serde(borrow, default)]
+    alg_list: Option<&'a RawValue>,
+}
+
+#[derive(Deserialize)]
+struct AlgItemView<'a> {
+    #[serde(rename = "algParam", borrow, default)]
+    alg_param: Option<&'a RawValue>,
+}
+
+#[derive(Deserialize)]
+struct AlgParamView<'a> {
+    #[serde(borrow, default)]
+    cooling_second: Option<&'a RawValue>,
+    #[serde(rename = "isOpenDQ", borrow, default)]
+    is_open_dq: Option<&'a RawValue>,
+    #[serde(rename = "openDqTime", borrow, default)]
+    open_dq_time: Option<&'a RawValue>,
 }
 
+#[derive(Deserialize)]
+struct SummaryView<'a> {
+    #[serde(rename = "plate/type", borrow, default)]
+    plate_type: Option<&'a RawValue>,
+}
+
+#[derive(Deserialize)]
+struct LabelView<'a> {
+    #[serde(borrow, default)]
+    label: Option<&'a RawValue>,
+}
+
+#[derive(Deserialize)]
+struct EventResultView<'a> {
+    #[serde(borrow, default)]
+    result: Option<&'a RawValue>,
+}
+
+/// Decodes an optional raw json field, treating a type mismatch like a missing field.
+fn decode_field<'a, T: Deserialize<'a>>(raw: Option<&'a RawValue>) -> Option<T> {
+    raw.and_then(|r| serde_json::from_str(r.get()).ok())
+}
+
+impl ExtraDataSlots {
+    fn decode(raw: &RawValue, original_violation_index: i32) -> Self {
+        let Some(view) = decode_field::<ExtraDataView>(Some(raw)) else { return Self::default() };
+
+        let alg_param = decode_field::<OriginalConfigView>(view.original_config)
+            .and_then(|oc| decode_field::<Vec<&RawValue>>(oc.alg_list))
+            .and_then(|alg_list| alg_list.get(original_violation_index as usize).copied())
+            .and_then(|alg_item| decode_field::<AlgItemView>(Some(alg_item)))
+            .and_then(|alg_item| decode_field::<AlgParamView>(alg_item.alg_param))
+            .map(|ap| AlgParamSlots {
+                cooling_second: decode_field(ap.cooling_second),
+                is_open_dq: decode_field(ap.is_open_dq),
+                open_dq_time: ap.open_dq_time.map(|raw| raw.to_owned()),
+            });
+
+        Self {
+            alg_param,
+            plate_number_score: decode_field(view.plate_number_score),
+            plate_type_label: decode_field::<SummaryView>(view.summary)
+                .and_then(|s| decode_field::<LabelView>(s.plate_type))
+                .and_then(|l| decode_field(l.label)),
+            position: decode_field::<Vec<Value>>(view.position)
+                .map(|values| values.iter().map(|v| v.as_f64().unwrap_or(0.0)).collect()),
+            event_result: decode_field::<EventResultView>(view.event_result)
+                .and_then(|er| decode_field(er.result)),
+        }
+    }
+}
+
+/// Per-item result of a batch report.
+#[derive(Debug, Serialize, Clone)]
+#[serde(rename_all = "camelCase")]
+pub struct BoxReportResult {
+    pub engine_event_id: Option<String>,
+    pub message: String,
+}
+
+impl BoxReportResult {
+    pub fn new(engine_event_id: Option<String>) -> Self {
+        Self { engine_event_id, message: String::new() }
+    }
+}
 
 #[derive(Debug, Deserialize, Serialize, Clone)]
 #[serde(rename_all = "camelCase")]
@@ -69,7 +219,7 @@ pub struct ReviewDataPushVo {
     pub snapshot_uri_compress: Option<String>,
     pub snapshot_uri_raw_compress: Option<String>,
     pub snapshot_uri_cover_compress: Option<String>,
-    pub extra_data: Option<Value>,
+    pub extra_data: Option<Box<RawValue>>,
     pub camera_code: Option<String>,
     pub evidence_status: Option<String>,
     pub evidence_url: Option<String>,
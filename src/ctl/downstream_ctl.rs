@@ -0,0 +1,13 @@
+use std::sync::Arc;
+
+use axum::{extract::State, response::Json};
+
+use crate::{app_state::AppState, service::downstream_svc::DownstreamSnapshot};
+use event_rs::{JsonResponse, response_result::RespResult};
+
+/// In-flight and waiting calls per downstream service.
+pub async fn get_downstream_stats(
+    State(app_state): State<Arc<AppState>>,
+) -> JsonResponse<Vec<DownstreamSnapshot>> {
+    Ok(Json(RespResult::ok(app_state.downstream.snapshot())))
+}
@@ -0,0 +1,11 @@
+use axum::http::header;
+use axum::response::IntoResponse;
+
+use crate::service::metrics_svc;
+use event_rs::exception::AppError;
+
+/// Prometheus scrape endpoint.
+pub async fn get_metrics() -> Result<impl IntoResponse, AppError> {
+    let body = metrics_svc::render()?;
+    Ok(([(header::CONTENT_TYPE, prometheus::TEXT_FORMAT)], body))
+}
@@ -1,2 +1,5 @@
 pub mod box_report_ctl;
-pub mod bs_model;
\ No newline at end of file
+pub mod box_report_pipeline;
+pub mod bs_model;
+pub mod downstream_ctl;
+pub mod metrics_ctl;
\ No newline at end of file
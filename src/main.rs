@@ -2,14 +2,14 @@
 
 use anyhow::Result;
 use axum::{
-    routing::{post},
+    routing::{get, post},
     Router,
     serve,
 };
 use sea_orm::Database;
 use redis::Client as RedisClient;
 use dotenvy::dotenv;
-use std::{env, sync::Arc};
+use std::{env, sync::Arc, time::Duration};
 use tracing_subscriber::{layer::SubscriberExt, util::SubscriberInitExt};
 use tower_http::trace::TraceLayer;
 use tokio::net::TcpListener;
@@ -19,14 +19,28 @@ mod service;
 mod app_state;
 
 use crate::app_state::AppState;
+use crate::ctl::box_report_pipeline::{Pipeline, PipelineConfig};
+use crate::service::{
+    algorithm_svc, base_config_svc, camera_svc, cooldown_svc, dedup_svc,
+    downstream_svc::{Downstream, DownstreamLimits, PushMode},
+    event_filter_config_svc, event_log_svc,
+    event_partition_svc::{self, PartitionConfig},
+    event_processing_svc,
+    event_writer_svc::EventWriter,
+    journal_svc::Journal,
+    mq_svc::{self, KafkaConfig, MqProducer},
+    near_cache, recent_event_svc, task_svc,
+};
 
 
 #[tokio::main]
 async fn main() -> Result<()> {
     // --- 1. Setup tracing and env ---
+    // Log lines are written by a background thread, the guard flushes them on exit
+    let (log_writer, _log_guard) = tracing_appender::non_blocking(std::io::stdout());
     tracing_subscriber::registry()
         .with(tracing_subscriber::EnvFilter::try_from_default_env().unwrap_or_else(|_| "RUST_LOG=debug,event_rs=debug,tower_http=debug".into()))
-        .with(tracing_subscriber::fmt::layer())
+        .with(tracing_subscriber::fmt::layer().with_writer(log_writer))
         .init();
     dotenv().ok();
 
@@ -55,19 +69,154 @@ async fn main() -> Result<()> {
         .expect("MESSAGE_CENTER_URL must be set");
     tracing::info!("Message Center URL: {}", message_center_url);
 
+    // Kafka producer, falls back to the message center API
+    let kafka_config = env::var("KAFKA_BROKERS").ok().map(|brokers| KafkaConfig {
+        brokers: brokers.split(',').map(|b| b.trim().to_string()).collect(),
+        linger: Duration::from_millis(env_usize("KAFKA_LINGER_MS", 5) as u64),
+        max_batch_bytes: env_usize("KAFKA_MAX_BATCH_BYTES", 1024 * 1024),
+        compression: mq_svc::parse_compression(&env::var("KAFKA_COMPRESSION").unwrap_or_else(|_| "lz4".to_string())),
+        produce_timeout: Duration::from_millis(env_usize("KAFKA_PRODUCE_TIMEOUT_MS", 10_000) as u64),
+    });
+    tracing::info!("Kafka producer: {:?}", kafka_config);
+    // Follow-up pushes and their downstream caps
+    let push_mode = PushMode::parse(&env::var("PUSH_MODE").unwrap_or_default());
+    let downstream = Arc::new(DownstreamLimits {
+        dq: Downstream::new("dq", env_usize("DQ_MAX_CONCURRENCY", 64)),
+        message_center: Downstream::new("message_center", env_usize("MESSAGE_CENTER_MAX_CONCURRENCY", 64)),
+    });
+    tracing::info!("Push mode: {:?}, downstream limits: {:?}", push_mode, downstream.snapshot());
+    // DQ 和消息中心的调用都持有下游许可, 超时避免挂住的连接一直占着许可
+    let http_client = reqwest::Client::builder()
+        .connect_timeout(Duration::from_millis(env_usize("HTTP_CONNECT_TIMEOUT_MS", 2_000) as u64))
+        .timeout(Duration::from_millis(env_usize("HTTP_TIMEOUT_MS", 10_000) as u64))
+        .build()
+        .expect("Failed to build HTTP client");
+    let mq_producer = Arc::new(
+        MqProducer::connect(
+            message_center_url,
+            http_client.clone(),
+            downstream.clone(),
+            kafka_config,
+            env_usize("MQ_QUEUE_CAPACITY", 10_000),
+        )
+        .await,
+    );
+
     // DQ Service URL
     let dq_service_url = env::var("DQ_SERVICE_URL")
         .expect("DQ_SERVICE_URL must be set");
     tracing::info!("DQ Service URL: {}", dq_service_url);
 
+    // Per-event log sampling, whole payloads for the boxes and tasks listed in Redis
+    let event_log_sample_every = env_usize("EVENT_LOG_SAMPLE_EVERY", 1);
+    event_log_svc::set_sample_every(event_log_sample_every as u64);
+    event_log_svc::spawn_full_targets_refresh(redis_client.clone());
+    tracing::info!("Event log: 1 in {} events, full payloads: {}", event_log_sample_every, event_log_svc::EVENT_LOG_FULL_KEY);
+
+    // Near cache invalidation on portal config changes
+    near_cache::spawn_invalidation_listener(
+        redis_client.clone(),
+        vec![
+            task_svc::near_cache(),
+            algorithm_svc::near_cache(),
+            base_config_svc::near_cache(),
+            event_filter_config_svc::near_cache(),
+            event_processing_svc::global_review_flag(),
+            camera_svc::camera_directory(),
+        ],
+    );
+
+    // Node affinity of boxes
+    let node_affinity = env::var("NODE_AFFINITY")
+        .map(|v| v == "true" || v == "1")
+        .unwrap_or(false);
+    tracing::info!("Node affinity: {}", node_affinity);
+    // Replay dedup Bloom filter, sized for the reports of one marker TTL
+    let dedup_expected_ids = env_usize("DEDUP_EXPECTED_IDS", 1_000_000);
+    dedup_svc::configure(dedup_expected_ids);
+    tracing::info!("Replay dedup sized for {} ids per window", dedup_expected_ids);
+
+    // Cooldown store of the frame-capture filter
+    let cooldown_store = cooldown_svc::new_store(node_affinity);
+
+    // Platform-side cooldown over the recently stored events
+    let platform_cooldown = env::var("PLATFORM_COOLDOWN")
+        .map(|v| v == "true" || v == "1")
+        .unwrap_or(false);
+    if platform_cooldown {
+        let horizon = Duration::from_secs(env_usize("PLATFORM_COOLDOWN_HORIZON_SECS", 3600) as u64);
+        recent_event_svc::configure(true, horizon);
+        // 预热失败不阻止启动，窗口随新事件逐步填充
+        match recent_event_svc::warm_up(&db).await {
+            Ok(loaded) => tracing::info!("Platform cooldown: horizon {:?}, loaded {} recent events", horizon, loaded),
+            Err(err) => tracing::error!("Platform cooldown: horizon {:?}, failed to load recent events: {}", horizon, err),
+        }
+    }
+
+    // Group-commit event writer
+    let event_writer_batch = env_usize("EVENT_WRITER_MAX_BATCH", 128);
+    let event_writer_linger = env::var("EVENT_WRITER_LINGER_MS")
+        .ok()
+        .and_then(|v| v.parse().ok())
+        .unwrap_or(2);
+    let event_writer = EventWriter::spawn(db.clone(), event_writer_batch, Duration::from_millis(event_writer_linger));
+    tracing::info!("Event writer: max batch {}, linger {}ms", event_writer_batch, event_writer_linger);
+
+    // Daily event_time partitions of the event table, see sql/event_0_partitioning.sql
+    let partition_maintenance = env::var("EVENT_PARTITION_MAINTENANCE")
+        .map(|v| v == "true" || v == "1")
+        .unwrap_or(false);
+    if partition_maintenance {
+        let config = PartitionConfig {
+            days_ahead: env_usize("EVENT_PARTITION_DAYS_AHEAD", 7) as u64,
+            retention_days: env::var("EVENT_RETENTION_DAYS").ok().and_then(|v| v.parse().ok()).unwrap_or(0),
+            interval: Duration::from_secs(env_usize("EVENT_PARTITION_INTERVAL_SECS", 3600) as u64),
+        };
+        tracing::info!("Event partition maintenance: {:?}", config);
+        event_partition_svc::spawn_maintenance(db.clone(), redis_client.clone(), config);
+    }
+
+    // Staged ingest pipeline
+    let pipeline_mode = env::var("PIPELINE_MODE")
+        .map(|v| v == "true" || v == "1")
+        .unwrap_or(false);
+    let (pipeline, pipeline_workers) = if pipeline_mode {
+        let config = PipelineConfig {
+            queue_capacity: env_usize("PIPELINE_QUEUE_CAPACITY", 1024),
+            concurrency: env_usize("PIPELINE_CONCURRENCY", 32),
+            persist_batch_size: env_usize("PIPELINE_PERSIST_BATCH_SIZE", 64),
+        };
+        tracing::info!("Pipeline mode: {:?}", config);
+        // Write-ahead journal of accepted reports, required because the box is answered before the report is stored
+        let dir = env::var("JOURNAL_DIR").expect("JOURNAL_DIR must be set in pipeline mode");
+        let segment_bytes = env_usize("JOURNAL_SEGMENT_BYTES", 64 * 1024 * 1024);
+        let sync = env::var("JOURNAL_SYNC").map(|v| v == "true" || v == "1").unwrap_or(false);
+        let (journal, replay) = Journal::open(&dir, segment_bytes, sync)
+            .expect("Failed to open journal");
+        tracing::info!("Journal: {}, segment bytes: {}, sync: {}", dir, segment_bytes, sync);
+        let journal = Arc::new(journal);
+        let (pipeline, workers) = Pipeline::new(config, journal);
+        (Some(pipeline), Some((workers, replay)))
+    } else {
+        (None, None)
+    };
+
     // --- 3. Create AppState ---
-    let app_state = Arc::new(AppState { db, redis_client, filter_events_config, message_center_url, dq_service_url });
+    let app_state = Arc::new(AppState { db, redis_client, filter_events_config, dq_service_url, node_affinity, pipeline, event_writer, cooldown_store, mq_producer, http_client, downstream, push_mode });
+    if let (Some(pipeline), Some((workers, replay))) = (app_state.pipeline.clone(), pipeline_workers) {
+        workers.spawn(app_state.clone());
+        tokio::spawn(async move { pipeline.replay(replay).await });
+    }
 
     // --- 4. Axum Router ---
     let app = Router::new()
         .nest("/v1", Router::new()
             .route("/box/report", post(ctl::box_report_ctl::post_box_report))
+            .route("/box/reports", post(ctl::box_report_ctl::post_box_reports))
+            .route("/pipeline/stats", get(ctl::box_report_pipeline::get_pipeline_stats))
+            .route("/downstream/stats", get(ctl::downstream_ctl::get_downstream_stats))
             .with_state(app_state.clone()))
+        .route("/metrics", get(ctl::metrics_ctl::get_metrics))
         .layer(TraceLayer::new_for_http());
 
     // --- 5. Start Server ---
@@ -77,3 +226,11 @@ async fn main() -> Result<()> {
     serve(listener, app.into_make_service()).await.unwrap();
     Ok(())
 }
+
+fn env_usize(key: &str, default: usize) -> usize {
+    env::var(key)
+        .ok()
+        .and_then(|v| v.parse().ok())
+        .filter(|v| *v > 0)
+        .unwrap_or(default)
+}
@@ -2,5 +2,6 @@
 pub use super::algorithm::Entity as Algorithm;
 pub use super::base_config::Entity as BaseConfig;
 pub use super::camera::Entity as Camera;
+pub use super::event::Entity as Event;
 pub use super::event_filter_config::Entity as EventFilterConfig;
 pub use super::task::Entity as Task;
@@ -1,3 +1,5 @@
+use std::sync::Arc;
+
 use anyhow::Result;
 use once_cell::sync::Lazy;
 use sea_orm::{DbConn, DbErr, EntityTrait};
@@ -6,16 +8,35 @@ use tokio::sync::Mutex;
 use tracing;
 
 use crate::models::{prelude::*, algorithm};
+use crate::service::near_cache::{Invalidate, NearCache};
 
 const CACHE_KEY_ALGORITHMS: &str = "event_rs::all_algorithms";
 const CACHE_TTL: u64 = 180; // 3 minutes in seconds
 static ALGORITHMS_FETCH_LOCK: Lazy<Mutex<()>> = Lazy::new(|| Mutex::new(()));
+static ALGORITHMS_NEAR_CACHE: Lazy<NearCache<Vec<algorithm::Model>>> =
+    Lazy::new(|| NearCache::new("algorithms", CACHE_KEY_ALGORITHMS));
 
 
-/// Fetches all algorithms, using a cache with a 3-minute TTL.
+/// Fetches all algorithms from the near cache, backed by the Redis cache.
 pub async fn get_all_algorithms(
     db: &DbConn,
     redis_client: &Client,
+) -> Result<Arc<Vec<algorithm::Model>>> {
+    let (db, redis_client) = (db.clone(), redis_client.clone());
+    ALGORITHMS_NEAR_CACHE
+        .get_or_load(|| async move { fetch_all_algorithms(&db, &redis_client).await })
+        .await
+}
+
+/// Near cache of this service, for the invalidation listener.
+pub fn near_cache() -> &'static dyn Invalidate {
+    &*ALGORITHMS_NEAR_CACHE
+}
+
+/// Fetches all algorithms, using a cache with a 3-minute TTL.
+async fn fetch_all_algorithms(
+    db: &DbConn,
+    redis_client: &Client,
 ) -> Result<Vec<algorithm::Model>> {
     let mut redis_conn = redis_client.get_connection()?;
     
@@ -58,5 +79,5 @@ pub async fn find_algorithm_by_code(
     code: &str,
 ) -> Result<Option<algorithm::Model>> {
     let algorithms = get_all_algorithms(db, redis_client).await?;
-    Ok(algorithms.into_iter().find(|a| a.code.as_deref() == Some(code)))
+    Ok(algorithms.iter().find(|a| a.code.as_deref() == Some(code)).cloned())
 }
\ No newline at end of file
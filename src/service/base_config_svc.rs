@@ -1,3 +1,5 @@
+use std::sync::Arc;
+
 use anyhow::Result;
 use once_cell::sync::Lazy;
 use sea_orm::{DbConn, DbErr, EntityTrait};
@@ -5,15 +7,34 @@ use redis::{Client, Commands};
 use tokio::sync::Mutex;
 
 use crate::models::{prelude::*, base_config};
+use crate::service::near_cache::{Invalidate, NearCache};
 
 const CACHE_KEY_BASE_CONFIGS: &str = "all_base_configs";
 const CACHE_TTL: u64 = 180; // 3 minutes in seconds
 static BASE_CONFIGS_FETCH_LOCK: Lazy<Mutex<()>> = Lazy::new(|| Mutex::new(()));
+static BASE_CONFIGS_NEAR_CACHE: Lazy<NearCache<Vec<base_config::Model>>> =
+    Lazy::new(|| NearCache::new("base_configs", CACHE_KEY_BASE_CONFIGS));
 
-/// Fetches all base configs, using a cache with a 3-minute TTL.
+/// Fetches all base configs from the near cache, backed by the Redis cache.
 pub async fn get_all_base_configs(
     db: &DbConn,
     redis_client: &Client,
+) -> Result<Arc<Vec<base_config::Model>>> {
+    let (db, redis_client) = (db.clone(), redis_client.clone());
+    BASE_CONFIGS_NEAR_CACHE
+        .get_or_load(|| async move { fetch_all_base_configs(&db, &redis_client).await })
+        .await
+}
+
+/// Near cache of this service, for the invalidation listener.
+pub fn near_cache() -> &'static dyn Invalidate {
+    &*BASE_CONFIGS_NEAR_CACHE
+}
+
+/// Fetches all base configs, using a cache with a 3-minute TTL.
+async fn fetch_all_base_configs(
+    db: &DbConn,
+    redis_client: &Client,
 ) -> Result<Vec<base_config::Model>> {
     let mut redis_conn = redis_client.get_connection().map_err(|e| DbErr::Custom(e.to_string()))?;
 
@@ -57,7 +78,8 @@ pub async fn find_base_configs_by_project_id(
 ) -> Result<Option<base_config::Model>> {
     let configs = get_all_base_configs(db, redis_client).await?;
     Ok(configs
-        .into_iter()
+        .iter()
         .find(|c| c.project_id == Some(project_id))
+        .cloned()
     )
 }
\ No newline at end of file
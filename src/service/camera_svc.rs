@@ -1,14 +1,30 @@
+use std::collections::HashMap;
+use std::sync::RwLock;
+use std::sync::atomic::{AtomicBool, Ordering};
+use std::time::{Duration, Instant};
+
+use chrono::NaiveDateTime;
 use once_cell::sync::Lazy;
-use sea_orm::{DbConn, DbErr, EntityTrait};
+use sea_orm::{ColumnTrait, DbConn, DbErr, EntityTrait, FromQueryResult, QueryFilter, QuerySelect};
 use redis::{Client, Commands};
 use tokio::sync::Mutex;
 
 use crate::models::{prelude::*, camera};
+use crate::service::near_cache::Invalidate;
 
 const CACHE_KEY_CAMERAS: &str = "all_cameras";
 const CACHE_TTL: u64 = 180; // 3 minutes in seconds
 static CAMERA_FETCH_LOCK: Lazy<Mutex<()>> = Lazy::new(|| Mutex::new(()));
 
+/// Cameras changed since the last refresh are merged after this interval.
+const DIRECTORY_REFRESH_INTERVAL: Duration = Duration::from_secs(30);
+/// Full rebuild interval, picks up rows deleted from the table.
+const DIRECTORY_REBUILD_INTERVAL: Duration = Duration::from_secs(600);
+/// No refresh is attempted this long after a failed one.
+const DIRECTORY_RETRY_INTERVAL: Duration = Duration::from_secs(5);
+
+static CAMERA_DIRECTORY: Lazy<CameraDirectoryCache> = Lazy::new(CameraDirectoryCache::default);
+
 
 /// Fetches all cameras, using a cache with a 3-minute TTL.
 pub async fn get_all_cameras(
@@ -80,4 +96,181 @@ pub async fn find_cameras_by_criteria<'a>(
     }).collect();
 
     Ok(filtered_cameras)
-}
\ No newline at end of file
+}
+
+/// Camera fields needed on the event path.
+#[derive(Debug, Clone)]
+pub struct CameraEntry {
+    pub id: i64,
+    pub name: Option<String>,
+}
+
+/// Resolves a camera name by box serial number and camera code from the camera directory.
+/// Fails only while the directory was never loaded; after that a failed
+/// refresh is logged and the cached directory is served.
+pub async fn find_camera_name(db: &DbConn, box_sn: &str, code: &str) -> Result<Option<String>, DbErr> {
+    CAMERA_DIRECTORY.refresh_if_due(db).await?;
+    Ok(CAMERA_DIRECTORY
+        .lookup(box_sn, code)
+        .and_then(|entry| entry.name))
+}
+
+/// Camera directory, for the invalidation listener. An invalidation triggers
+/// an incremental refresh on the next lookup.
+pub fn camera_directory() -> &'static dyn Invalidate {
+    &*CAMERA_DIRECTORY
+}
+
+/// Cameras by box serial number and camera code. Refreshed incrementally from
+/// the rows updated since the last refresh, and rebuilt periodically.
+#[derive(Default)]
+struct CameraDirectoryCache {
+    directory: RwLock<CameraDirectory>,
+    refresh_lock: Mutex<()>,
+    refresh_requested: AtomicBool,
+}
+
+#[derive(Default)]
+struct CameraDirectory {
+    by_box: HashMap<String, HashMap<String, CameraEntry>>,
+    /// `(box_sn, code)` of each camera id, to move or drop a changed camera.
+    keys: HashMap<i64, (String, String)>,
+    /// Largest `update_time` merged so far.
+    watermark: Option<NaiveDateTime>,
+    refreshed_at: Option<Instant>,
+    rebuilt_at: Option<Instant>,
+    failed_at: Option<Instant>,
+}
+
+impl CameraDirectoryCache {
+    fn lookup(&self, box_sn: &str, code: &str) -> Option<CameraEntry> {
+        self.directory
+            .read()
+            .unwrap()
+            .by_box
+            .get(box_sn)
+            .and_then(|cameras| cameras.get(code))
+            .cloned()
+    }
+
+    async fn refresh_if_due(&self, db: &DbConn) -> Result<(), DbErr> {
+        let (loaded, due, rebuild) = {
+            let directory = self.directory.read().unwrap();
+            let loaded = directory.refreshed_at.is_some();
+            let due = !loaded
+                || self.refresh_requested.load(Ordering::Acquire)
+                || directory.refreshed_at.is_some_and(|t| t.elapsed() >= DIRECTORY_REFRESH_INTERVAL);
+            let rebuild = directory.rebuilt_at.is_none_or(|t| t.elapsed() >= DIRECTORY_REBUILD_INTERVAL);
+            // 刷新失败后退避, 数据库故障期间不让每个事件都去查库
+            if directory.failed_at.is_some_and(|t| t.elapsed() < DIRECTORY_RETRY_INTERVAL) {
+                return if loaded {
+                    Ok(())
+                } else {
+                    Err(DbErr::Custom("camera directory is not loaded".to_string()))
+                };
+            }
+            (loaded, due, rebuild)
+        };
+        if !due {
+            return Ok(());
+        }
+
+        // Only the first load waits; later refreshes are skipped while one is running.
+        let _guard = if loaded {
+            match self.refresh_lock.try_lock() {
+                Ok(guard) => guard,
+                Err(_) => return Ok(()),
+            }
+        } else {
+            self.refresh_lock.lock().await
+        };
+        // Taken before the query, so that an invalidation arriving meanwhile
+        // triggers another refresh; put back when the query fails.
+        let requested = self.refresh_requested.swap(false, Ordering::AcqRel);
+
+        let watermark = self.directory.read().unwrap().watermark;
+        let mut query = Camera::find().select_only().columns([
+            camera::Column::Id,
+            camera::Column::Code,
+            camera::Column::Name,
+            camera::Column::BoxSn,
+            camera::Column::IsDel,
+            camera::Column::UpdateTime,
+        ]);
+        if let (false, Some(watermark)) = (rebuild, watermark) {
+            // `>=` re-reads rows updated within the watermark second, merging is idempotent.
+            query = query.filter(camera::Column::UpdateTime.gte(watermark));
+        }
+        let cameras = match query.into_model::<CameraRow>().all(db).await {
+            Ok(cameras) => cameras,
+            Err(err) => {
+                if requested {
+                    self.refresh_requested.store(true, Ordering::Release);
+                }
+                self.directory.write().unwrap().failed_at = Some(Instant::now());
+                if !loaded {
+                    return Err(err);
+                }
+                tracing::warn!("camera directory refresh failed, serving the cached directory: {}", err);
+                return Ok(());
+            }
+        };
+
+        let mut directory = self.directory.write().unwrap();
+        if rebuild {
+            *directory = CameraDirectory::default();
+            directory.rebuilt_at = Some(Instant::now());
+        }
+        for camera in cameras {
+            directory.merge(camera);
+        }
+        directory.refreshed_at = Some(Instant::now());
+        directory.failed_at = None;
+        Ok(())
+    }
+}
+
+/// The columns of a camera the directory is built from, without the json columns.
+#[derive(FromQueryResult)]
+struct CameraRow {
+    id: i64,
+    code: Option<String>,
+    name: Option<String>,
+    box_sn: Option<String>,
+    is_del: i32,
+    update_time: NaiveDateTime,
+}
+
+impl CameraDirectory {
+    fn merge(&mut self, camera: CameraRow) {
+        self.watermark = self.watermark.max(Some(camera.update_time));
+        if let Some((box_sn, code)) = self.keys.remove(&camera.id) {
+            if let Some(cameras) = self.by_box.get_mut(&box_sn) {
+                cameras.remove(&code);
+            }
+        }
+        let (Some(box_sn), Some(code)) = (camera.box_sn, camera.code) else { return };
+        if camera.is_del != 0 {
+            return;
+        }
+        self.keys.insert(camera.id, (box_sn.clone(), code.clone()));
+        self.by_box
+            .entry(box_sn)
+            .or_default()
+            .insert(code, CameraEntry { id: camera.id, name: camera.name });
+    }
+}
+
+impl Invalidate for CameraDirectoryCache {
+    fn name(&self) -> &'static str {
+        "cameras"
+    }
+
+    fn redis_key(&self) -> Option<&'static str> {
+        Some(CACHE_KEY_CAMERAS)
+    }
+
+    fn invalidate(&self) {
+        self.refresh_requested.store(true, Ordering::Release);
+    }
+}
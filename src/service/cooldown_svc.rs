@@ -0,0 +1,230 @@
+//! Cooldown windows of the frame-capture event filter (`FILTER_EVENT_TYPE`).
+//!
+//! An event starts a window of `cooling_second` seconds per task and event
+//! type; events of the same algorithm config inside the window are filtered.
+//! When boxes are pinned to this node the windows are kept in memory,
+//! otherwise they are shared through Redis.
+
+use std::collections::HashMap;
+use std::hash::{BuildHasher, RandomState};
+use std::sync::Arc;
+use std::sync::Mutex;
+use std::time::Duration;
+
+use chrono::Utc;
+use redis::Commands;
+
+const SHARDS: usize = 64;
+/// Slots of the expiry wheel, one per second.
+const WHEEL_SLOTS: usize = 512;
+
+pub trait CooldownStore: Send + Sync {
+    /// Returns `true` when the event falls into the current window of its task
+    /// and event type. Otherwise a new window is started from the event time.
+    fn check_and_start(
+        &self,
+        task_code: &str,
+        event_type: &str,
+        cooling_second: i64,
+        event_time_ms: Option<i64>,
+        redis_conn: &mut redis::Connection,
+    ) -> bool;
+}
+
+/// Picks the store for the node: local when boxes are pinned to it, Redis otherwise.
+pub fn new_store(node_affinity: bool) -> Arc<dyn CooldownStore> {
+    if node_affinity {
+        let store = Arc::new(LocalCooldownStore::new());
+        store.clone().spawn_expiry();
+        store
+    } else {
+        Arc::new(RedisCooldownStore)
+    }
+}
+
+/// Shared store under `FILTER_EVENT_TYPE:_<task>_<type>`, values are
+/// `"cooling_second@event_millis"` with the window as TTL.
+pub struct RedisCooldownStore;
+
+impl CooldownStore for RedisCooldownStore {
+    fn check_and_start(
+        &self,
+        task_code: &str,
+        event_type: &str,
+        cooling_second: i64,
+        event_time_ms: Option<i64>,
+        redis_conn: &mut redis::Connection,
+    ) -> bool {
+        let key = format!("FILTER_EVENT_TYPE:_{}_{}", task_code, event_type);
+        if let Ok(value_str) = redis_conn.get::<_, String>(&key) {
+            if let Some((old_cooling, old_timestamp_ms)) = value_str.split_once('@') {
+                let old_cooling = old_cooling.parse::<i64>().unwrap_or(0);
+                let old_timestamp_ms = old_timestamp_ms.parse::<i64>().unwrap_or(0);
+                if in_window(old_cooling, old_timestamp_ms, cooling_second, event_time_ms) {
+                    return true;
+                }
+            }
+        }
+
+        if let Some(event_time_ms) = event_time_ms {
+            let expiry_seconds = ((window_end(event_time_ms, cooling_second) - Utc::now().timestamp_millis()) / 1000)
+                .max(1); // Ensure min 1 second TTL
+            let new_value = format!("{}@{}", cooling_second, event_time_ms);
+            let _: Result<(), _> = redis_conn.set_ex(&key, new_value, expiry_seconds as u64);
+        }
+        false
+    }
+}
+
+/// Node-local store. Windows are kept per task code and event type in nested
+/// maps, spread over mutex-striped shards, so a check borrows the keys of the
+/// report and is one short critical section without allocation for known keys.
+/// Expired windows are reclaimed by a hashed timing wheel holding one entry
+/// per key, which is moved along when the window was restarted meanwhile.
+pub struct LocalCooldownStore {
+    hasher: RandomState,
+    shards: Vec<Mutex<WindowMap>>,
+    wheel: Vec<Mutex<Vec<WheelEntry>>>,
+    last_swept_sec: Mutex<i64>,
+}
+
+type WindowMap = HashMap<String, HashMap<String, Window>>;
+
+#[derive(Clone, Copy)]
+struct Window {
+    cooling_second: i64,
+    event_time_ms: i64,
+    expires_at_ms: i64,
+}
+
+struct WheelEntry {
+    task_code: String,
+    event_type: String,
+    deadline_ms: i64,
+}
+
+impl LocalCooldownStore {
+    pub fn new() -> Self {
+        Self {
+            hasher: RandomState::new(),
+            shards: (0..SHARDS).map(|_| Mutex::new(HashMap::new())).collect(),
+            wheel: (0..WHEEL_SLOTS).map(|_| Mutex::new(Vec::new())).collect(),
+            last_swept_sec: Mutex::new(Utc::now().timestamp()),
+        }
+    }
+
+    fn shard(&self, task_code: &str, event_type: &str) -> &Mutex<WindowMap> {
+        &self.shards[self.hasher.hash_one((task_code, event_type)) as usize % SHARDS]
+    }
+
+    fn schedule(&self, entry: WheelEntry) {
+        let slot = (entry.deadline_ms / 1000) as usize % WHEEL_SLOTS;
+        self.wheel[slot].lock().unwrap().push(entry);
+    }
+
+    fn spawn_expiry(self: Arc<Self>) {
+        tokio::spawn(async move {
+            let mut interval = tokio::time::interval(Duration::from_secs(1));
+            loop {
+                interval.tick().await;
+                self.sweep(Utc::now().timestamp_millis());
+            }
+        });
+    }
+
+    /// Drops the expired windows of every wheel slot passed since the last sweep.
+    /// The entry of a window that was restarted meanwhile moves to the slot of
+    /// its new expiry; entries due in a later round of the wheel stay in their slot.
+    fn sweep(&self, now_ms: i64) {
+        let now_sec = now_ms / 1000;
+        let from_sec = {
+            let mut last = self.last_swept_sec.lock().unwrap();
+            let from = (*last + 1).max(now_sec - WHEEL_SLOTS as i64 + 1);
+            *last = now_sec;
+            from
+        };
+        for sec in from_sec..=now_sec {
+            let slot = &self.wheel[sec as usize % WHEEL_SLOTS];
+            let due = std::mem::take(&mut *slot.lock().unwrap());
+            let mut later = Vec::new();
+            for mut entry in due {
+                if entry.deadline_ms > now_ms {
+                    later.push(entry);
+                    continue;
+                }
+                let mut shard = self.shard(&entry.task_code, &entry.event_type).lock().unwrap();
+                let Some(types) = shard.get_mut(&entry.task_code) else { continue };
+                match types.get(&entry.event_type) {
+                    Some(window) if window.expires_at_ms > now_ms => {
+                        entry.deadline_ms = window.expires_at_ms;
+                        drop(shard);
+                        self.schedule(entry);
+                    }
+                    Some(_) => {
+                        types.remove(&entry.event_type);
+                        if types.is_empty() {
+                            shard.remove(&entry.task_code);
+                        }
+                    }
+                    None => {}
+                }
+            }
+            if !later.is_empty() {
+                slot.lock().unwrap().extend(later);
+            }
+        }
+    }
+}
+
+impl CooldownStore for LocalCooldownStore {
+    fn check_and_start(
+        &self,
+        task_code: &str,
+        event_type: &str,
+        cooling_second: i64,
+        event_time_ms: Option<i64>,
+        _redis_conn: &mut redis::Connection,
+    ) -> bool {
+        let now_ms = Utc::now().timestamp_millis();
+        let mut shard = self.shard(task_code, event_type).lock().unwrap();
+        let current = shard.get_mut(task_code).and_then(|types| types.get_mut(event_type));
+        if let Some(window) = current.as_deref().filter(|w| w.expires_at_ms > now_ms) {
+            if in_window(window.cooling_second, window.event_time_ms, cooling_second, event_time_ms) {
+                return true;
+            }
+        }
+
+        let Some(event_time_ms) = event_time_ms else { return false };
+        let expires_at_ms = window_end(event_time_ms, cooling_second).max(now_ms + 1000);
+        let window = Window { cooling_second, event_time_ms, expires_at_ms };
+        // 已有的键原地更新, 它在时间轮上的条目到期时会顺延
+        if let Some(current) = current {
+            *current = window;
+            return false;
+        }
+        shard
+            .entry(task_code.to_string())
+            .or_default()
+            .insert(event_type.to_string(), window);
+        drop(shard);
+        self.schedule(WheelEntry {
+            task_code: task_code.to_string(),
+            event_type: event_type.to_string(),
+            deadline_ms: expires_at_ms,
+        });
+        false
+    }
+}
+
+/// Same cooling config as the open window, or an event time within the new
+/// cooling period after the event that opened it.
+fn in_window(old_cooling: i64, old_event_time_ms: i64, cooling_second: i64, event_time_ms: Option<i64>) -> bool {
+    if old_cooling == cooling_second {
+        return true;
+    }
+    event_time_ms.is_some_and(|t| t <= window_end(old_event_time_ms, cooling_second))
+}
+
+fn window_end(event_time_ms: i64, cooling_second: i64) -> i64 {
+    event_time_ms + cooling_second * 1000
+}
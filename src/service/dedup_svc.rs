@@ -0,0 +1,283 @@
+//! Replay protection for box reports.
+//!
+//! Boxes resend an event (same engine_event_id) when they did not get an answer.
+//! A report is claimed on arrival with one atomic `SET NX EX`, and the claim is
+//! released again when processing fails, so that the retry is accepted.
+//!
+//! When boxes are pinned to this node (`node_affinity`), a time-rotated Bloom
+//! filter answers "definitely new" for most reports without touching Redis;
+//! the Redis marker is then only written once processing succeeded. Until
+//! then the id is held in an exact set of local claims, which rejects copies
+//! that arrive meanwhile. The Bloom check and the local claim are made under
+//! the lock of the id's shard, so two copies never both pass as new.
+
+use std::collections::HashMap;
+use std::collections::hash_map::DefaultHasher;
+use std::hash::{Hash, Hasher};
+use std::sync::{Mutex, RwLock};
+use std::sync::atomic::{AtomicU64, AtomicUsize, Ordering};
+use std::time::{Duration, Instant};
+
+use once_cell::sync::Lazy;
+
+/// Seconds an engine_event_id is remembered to reject replays from boxes.
+pub const REPLAY_MARKER_TTL: u64 = 600;
+
+/// Bits per expected id, about 1% false positives per full generation with
+/// `BLOOM_HASHES` hashes. Both generations are checked, so about 2% overall.
+const BLOOM_BITS_PER_ID: usize = 10;
+const BLOOM_HASHES: u64 = 7;
+const LOCAL_CLAIM_SHARDS: usize = 64;
+
+/// Ids expected per `REPLAY_MARKER_TTL`, sizes the Bloom filter.
+static EXPECTED_IDS: AtomicUsize = AtomicUsize::new(1_000_000);
+
+static LOCAL_CLAIMS: Lazy<LocalClaims> = Lazy::new(|| {
+    let bits = EXPECTED_IDS.load(Ordering::Relaxed).max(1) * BLOOM_BITS_PER_ID;
+    LocalClaims::new(Duration::from_secs(REPLAY_MARKER_TTL), bits)
+});
+
+/// Sizes the Bloom filter for the ids reported per `REPLAY_MARKER_TTL`.
+/// Takes effect when called before the first claim.
+pub fn configure(expected_ids: usize) {
+    EXPECTED_IDS.store(expected_ids, Ordering::Relaxed);
+}
+
+/// How a report was claimed.
+#[derive(Debug, Clone, Copy, PartialEq)]
+pub enum ReplayClaim {
+    /// Claimed in Redis with `SET NX EX`.
+    Claimed,
+    /// Known new on this node; the Redis marker is written by `confirm`.
+    LocallyNew,
+    /// Already reported, must not be processed again.
+    Duplicate,
+}
+
+/// Claims a single report on arrival.
+pub fn claim(redis_conn: &mut redis::Connection, engine_event_id: &str, node_affinity: bool) -> ReplayClaim {
+    if node_affinity {
+        if let Some(claim) = LOCAL_CLAIMS.claim(engine_event_id) {
+            return claim;
+        }
+    }
+    set_nx_cmd(engine_event_id)
+        .query::<Option<String>>(redis_conn)
+        .map(|reply| if reply.is_some() { ReplayClaim::Claimed } else { ReplayClaim::Duplicate })
+        // Fail open like the former EXISTS check when Redis is unavailable.
+        .unwrap_or(ReplayClaim::Claimed)
+}
+
+/// Claims the reports of a batch, pipelining the Redis claims.
+pub fn claim_all(redis_conn: &mut redis::Connection, engine_event_ids: &[String], node_affinity: bool) -> Vec<ReplayClaim> {
+    let mut claims: Vec<Option<ReplayClaim>> = engine_event_ids
+        .iter()
+        .map(|id| if node_affinity { LOCAL_CLAIMS.claim(id) } else { None })
+        .collect();
+
+    let mut pipe = redis::pipe();
+    let mut pending = false;
+    for (id, claim) in engine_event_ids.iter().zip(&claims) {
+        if claim.is_none() {
+            pipe.add_command(set_nx_cmd(id));
+            pending = true;
+        }
+    }
+    let replies: Vec<Option<String>> = if pending {
+        pipe.query(redis_conn).unwrap_or_default()
+    } else {
+        Vec::new()
+    };
+    let mut replies = replies.into_iter();
+    for claim in claims.iter_mut().filter(|c| c.is_none()) {
+        *claim = Some(match replies.next() {
+            Some(None) => ReplayClaim::Duplicate,
+            _ => ReplayClaim::Claimed,
+        });
+    }
+    claims.into_iter().map(|c| c.unwrap_or(ReplayClaim::Claimed)).collect()
+}
+
+/// Makes the claims of successfully processed reports visible to every node.
+pub fn confirm(redis_conn: &mut redis::Connection, claims: &[(String, ReplayClaim)]) {
+    let mut pipe = redis::pipe();
+    let mut pending = false;
+    for (id, claim) in claims {
+        if *claim == ReplayClaim::LocallyNew {
+            pipe.cmd("SET").arg(id).arg(id).arg("EX").arg(REPLAY_MARKER_TTL).ignore();
+            pending = true;
+        }
+    }
+    if pending {
+        let _: Result<(), _> = pipe.query(redis_conn);
+        // 标记写入后才释放本地占位, 之后的重复上报由 SET NX 拒绝
+        LOCAL_CLAIMS.remove(claims);
+    }
+}
+
+/// Releases the claims of reports whose processing failed, so that box retries are accepted.
+/// Ids claimed only locally stay in the Bloom filter; their retries fall back to a Redis claim.
+pub fn release(redis_conn: &mut redis::Connection, claims: &[(String, ReplayClaim)]) {
+    LOCAL_CLAIMS.remove(claims);
+    let mut pipe = redis::pipe();
+    let mut pending = false;
+    for (id, claim) in claims {
+        if *claim == ReplayClaim::Claimed {
+            pipe.cmd("DEL").arg(id).ignore();
+            pending = true;
+        }
+    }
+    if pending {
+        let _: Result<(), _> = pipe.query(redis_conn);
+    }
+}
+
+fn set_nx_cmd(engine_event_id: &str) -> redis::Cmd {
+    let mut cmd = redis::cmd("SET");
+    cmd.arg(engine_event_id)
+        .arg(engine_event_id)
+        .arg("NX")
+        .arg("EX")
+        .arg(REPLAY_MARKER_TTL);
+    cmd
+}
+
+/// Ids claimed on this node without a Redis marker, next to the Bloom filter
+/// of every id seen. Entries are kept until confirmed or released; ones left
+/// behind are dropped after a marker TTL.
+struct LocalClaims {
+    window: Duration,
+    bloom: RotatingBloom,
+    shards: Vec<Mutex<HashMap<String, Instant>>>,
+    swept_at: Mutex<Instant>,
+}
+
+impl LocalClaims {
+    fn new(window: Duration, bloom_bits: usize) -> Self {
+        Self {
+            window,
+            bloom: RotatingBloom::new(window, bloom_bits),
+            shards: (0..LOCAL_CLAIM_SHARDS).map(|_| Mutex::new(HashMap::new())).collect(),
+            swept_at: Mutex::new(Instant::now()),
+        }
+    }
+
+    fn shard(&self, id: &str) -> &Mutex<HashMap<String, Instant>> {
+        &self.shards[hash_pair(id).0 as usize % LOCAL_CLAIM_SHARDS]
+    }
+
+    /// `LocallyNew` for an id that is definitely new, `Duplicate` for an id
+    /// that is claimed here and not yet confirmed, otherwise `None`: the id
+    /// has to be claimed in Redis.
+    fn claim(&self, id: &str) -> Option<ReplayClaim> {
+        self.sweep_if_due();
+        let mut shard = self.shard(id).lock().unwrap();
+        if shard.get(id).is_some_and(|at| at.elapsed() < self.window) {
+            return Some(ReplayClaim::Duplicate);
+        }
+        if !self.bloom.check_and_insert(id) {
+            return None;
+        }
+        shard.insert(id.to_string(), Instant::now());
+        Some(ReplayClaim::LocallyNew)
+    }
+
+    fn remove(&self, claims: &[(String, ReplayClaim)]) {
+        for (id, claim) in claims {
+            if *claim == ReplayClaim::LocallyNew {
+                self.shard(id).lock().unwrap().remove(id);
+            }
+        }
+    }
+
+    fn sweep_if_due(&self) {
+        {
+            let mut swept_at = self.swept_at.lock().unwrap();
+            if swept_at.elapsed() < self.window {
+                return;
+            }
+            *swept_at = Instant::now();
+        }
+        for shard in &self.shards {
+            shard.lock().unwrap().retain(|_, at| at.elapsed() < self.window);
+        }
+    }
+}
+
+/// Two-generation Bloom filter. An id inserted into the current generation is
+/// remembered for at least one window, then the older generation is dropped.
+struct RotatingBloom {
+    window: Duration,
+    /// Bits per generation, a multiple of 64.
+    bits: usize,
+    started_at: Instant,
+    generations: RwLock<Generations>,
+}
+
+struct Generations {
+    rotated_at: Instant,
+    current: Vec<AtomicU64>,
+    previous: Vec<AtomicU64>,
+}
+
+impl RotatingBloom {
+    fn new(window: Duration, bits: usize) -> Self {
+        let bits = bits.div_ceil(64).max(1) * 64;
+        let now = Instant::now();
+        Self {
+            window,
+            bits,
+            started_at: now,
+            generations: RwLock::new(Generations {
+                rotated_at: now,
+                current: new_bits(bits),
+                previous: new_bits(bits),
+            }),
+        }
+    }
+
+    /// Inserts the id and returns `true` if it was definitely not seen before.
+    /// Until the filter has run for a full window (e.g. right after a restart)
+    /// it cannot prove that, and always returns `false`.
+    fn check_and_insert(&self, id: &str) -> bool {
+        self.rotate_if_due();
+        let (h1, h2) = hash_pair(id);
+        let generations = self.generations.read().unwrap();
+        let mut seen_current = true;
+        let mut seen_previous = true;
+        for i in 0..BLOOM_HASHES {
+            let bit = (h1.wrapping_add(i.wrapping_mul(h2)) % self.bits as u64) as usize;
+            let (word, mask) = (bit / 64, 1u64 << (bit % 64));
+            let before = generations.current[word].fetch_or(mask, Ordering::Relaxed);
+            seen_current &= before & mask != 0;
+            seen_previous &= generations.previous[word].load(Ordering::Relaxed) & mask != 0;
+        }
+        !(seen_current || seen_previous) && self.started_at.elapsed() >= self.window
+    }
+
+    fn rotate_if_due(&self) {
+        if self.generations.read().unwrap().rotated_at.elapsed() < self.window {
+            return;
+        }
+        let mut generations = self.generations.write().unwrap();
+        if generations.rotated_at.elapsed() < self.window {
+            return;
+        }
+        let current = std::mem::replace(&mut generations.current, new_bits(self.bits));
+        generations.previous = current;
+        generations.rotated_at = Instant::now();
+    }
+}
+
+fn new_bits(bits: usize) -> Vec<AtomicU64> {
+    (0..bits / 64).map(|_| AtomicU64::new(0)).collect()
+}
+
+fn hash_pair(id: &str) -> (u64, u64) {
+    let mut hasher = DefaultHasher::new();
+    id.hash(&mut hasher);
+    let h1 = hasher.finish();
+    0x9e37_79b9_7f4a_7c15u64.hash(&mut hasher);
+    let h2 = hasher.finish() | 1;
+    (h1, h2)
+}
@@ -0,0 +1,115 @@
+//! Concurrency caps of the downstream services the follow-up pushes call.
+//!
+//! Pushes run as tokio tasks, so any number of them can wait on I/O at once;
+//! the semaphore of each downstream bounds how many actually call it, and the
+//! others queue for a permit instead of piling up requests on the service.
+
+use std::sync::Arc;
+use std::sync::atomic::{AtomicUsize, Ordering};
+use std::time::Instant;
+
+use serde::Serialize;
+use tokio::sync::{OwnedSemaphorePermit, Semaphore};
+
+use crate::service::metrics_svc;
+
+/// Where the follow-up pushes of a persisted event run.
+#[derive(Debug, Clone, Copy, PartialEq)]
+pub enum PushMode {
+    /// Awaited within the report request, before the box gets its answer.
+    Inline,
+    /// Spawned as a task per event, the box is answered once the event is stored.
+    Spawn,
+}
+
+impl PushMode {
+    pub fn parse(value: &str) -> Self {
+        match value {
+            "spawn" => PushMode::Spawn,
+            _ => PushMode::Inline,
+        }
+    }
+}
+
+/// Caps of the downstream services.
+pub struct DownstreamLimits {
+    pub dq: Downstream,
+    pub message_center: Downstream,
+}
+
+impl DownstreamLimits {
+    pub fn snapshot(&self) -> Vec<DownstreamSnapshot> {
+        vec![self.dq.snapshot(), self.message_center.snapshot()]
+    }
+}
+
+/// Permits of one downstream service.
+pub struct Downstream {
+    /// Also the `queue` label of its permit waits.
+    name: &'static str,
+    /// 0 when the downstream is unbounded.
+    limit: usize,
+    permits: Option<Arc<Semaphore>>,
+    waiting: AtomicUsize,
+    in_flight: Arc<AtomicUsize>,
+}
+
+/// Held for the duration of one downstream call.
+pub struct DownstreamPermit {
+    _permit: Option<OwnedSemaphorePermit>,
+    in_flight: Arc<AtomicUsize>,
+}
+
+impl Drop for DownstreamPermit {
+    fn drop(&mut self) {
+        self.in_flight.fetch_sub(1, Ordering::Relaxed);
+    }
+}
+
+#[derive(Debug, Serialize)]
+#[serde(rename_all = "camelCase")]
+pub struct DownstreamSnapshot {
+    pub name: &'static str,
+    pub limit: Option<usize>,
+    pub in_flight: usize,
+    pub waiting: usize,
+}
+
+impl Downstream {
+    /// A `limit` of 0 leaves the downstream unbounded.
+    pub fn new(name: &'static str, limit: usize) -> Self {
+        Self {
+            name,
+            limit,
+            permits: (limit > 0).then(|| Arc::new(Semaphore::new(limit))),
+            waiting: AtomicUsize::new(0),
+            in_flight: Arc::new(AtomicUsize::new(0)),
+        }
+    }
+
+    pub async fn acquire(&self) -> DownstreamPermit {
+        let permit = match self.permits.as_ref() {
+            Some(permits) => {
+                let started = Instant::now();
+                self.waiting.fetch_add(1, Ordering::Relaxed);
+                // The semaphore is never closed.
+                let permit = permits.clone().acquire_owned().await.ok();
+                self.waiting.fetch_sub(1, Ordering::Relaxed);
+                metrics_svc::observe_queue_wait(self.name, started.elapsed());
+                permit
+            }
+            None => None,
+        };
+        self.in_flight.fetch_add(1, Ordering::Relaxed);
+        DownstreamPermit { _permit: permit, in_flight: self.in_flight.clone() }
+    }
+
+    pub fn snapshot(&self) -> DownstreamSnapshot {
+        DownstreamSnapshot {
+            name: self.name,
+            limit: (self.limit > 0).then_some(self.limit),
+            in_flight: self.in_flight.load(Ordering::Relaxed),
+            waiting: self.waiting.load(Ordering::Relaxed),
+        }
+    }
+}
@@ -1,4 +1,8 @@
+use std::collections::HashMap;
+use std::sync::{Arc, RwLock};
+
 use anyhow::Result;
+use chrono::NaiveDateTime;
 use once_cell::sync::Lazy;
 use sea_orm::{DbConn, DbErr, EntityTrait};
 use redis::{Client, Commands};
@@ -6,15 +10,49 @@ use tokio::sync::Mutex;
 
 
 use crate::models::{prelude::*, event_filter_config};
+use crate::service::event_processing_svc::CompiledFilterConfig;
+use crate::service::near_cache::{Invalidate, NearCache};
 
 const CACHE_KEY_EVENT_FILTER_CONFIGS: &str = "all_event_filter_configs";
 const CACHE_TTL: u64 = 180; // 3 minutes in seconds
 static EVENT_FILTER_CONFIGS_FETCH_LOCK: Lazy<Mutex<()>> = Lazy::new(|| Mutex::new(()));
+static EVENT_FILTER_CONFIGS_NEAR_CACHE: Lazy<NearCache<Vec<event_filter_config::Model>>> =
+    Lazy::new(|| NearCache::new("event_filter_configs", CACHE_KEY_EVENT_FILTER_CONFIGS));
 
-/// Fetches all event filter configs, using a cache with a 3-minute TTL.
+/// Identifies one version of a project's configs: the `(id, update_time)` of every row.
+type ConfigVersion = Vec<(i64, NaiveDateTime)>;
+
+/// The compiled configs of a project and the near cache load they were checked against.
+struct CompiledEntry {
+    source: Arc<Vec<event_filter_config::Model>>,
+    version: ConfigVersion,
+    compiled: Arc<CompiledFilterConfig>,
+}
+
+/// Compiled filter configs per project, recompiled when the config version changes.
+static COMPILED_FILTER_CONFIGS: Lazy<RwLock<HashMap<i64, CompiledEntry>>> =
+    Lazy::new(|| RwLock::new(HashMap::new()));
+
+/// Fetches all event filter configs from the near cache, backed by the Redis cache.
 pub async fn get_all_event_filter_configs(
     db: &DbConn,
     redis_client: &Client,
+) -> Result<Arc<Vec<event_filter_config::Model>>> {
+    let (db, redis_client) = (db.clone(), redis_client.clone());
+    EVENT_FILTER_CONFIGS_NEAR_CACHE
+        .get_or_load(|| async move { fetch_all_event_filter_configs(&db, &redis_client).await })
+        .await
+}
+
+/// Near cache of this service, for the invalidation listener.
+pub fn near_cache() -> &'static dyn Invalidate {
+    &*EVENT_FILTER_CONFIGS_NEAR_CACHE
+}
+
+/// Fetches all event filter configs, using a cache with a 3-minute TTL.
+async fn fetch_all_event_filter_configs(
+    db: &DbConn,
+    redis_client: &Client,
 ) -> Result<Vec<event_filter_config::Model>> {
     let mut redis_conn = redis_client.get_connection().map_err(|e| DbErr::Custom(e.to_string()))?;
     
@@ -58,7 +96,50 @@ pub async fn find_event_filter_configs_by_project_id(
 ) -> Result<Vec<event_filter_config::Model>> {
     let configs = get_all_event_filter_configs(db, redis_client).await?;
     Ok(configs
-        .into_iter()
+        .iter()
         .filter(|c| c.project_id == Some(project_id))
+        .cloned()
         .collect())
-}
\ No newline at end of file
+}
+
+/// Finds the compiled filter config of a project.
+/// While the near cache serves the same load, this is a pointer comparison.
+/// A new load is compared by config version and only recompiled when changed.
+pub async fn find_compiled_filter_config_by_project_id(
+    db: &DbConn,
+    redis_client: &Client,
+    project_id: i64,
+) -> Result<Arc<CompiledFilterConfig>> {
+    let configs = get_all_event_filter_configs(db, redis_client).await?;
+    if let Some(entry) = COMPILED_FILTER_CONFIGS.read().unwrap().get(&project_id) {
+        if Arc::ptr_eq(&entry.source, &configs) {
+            return Ok(entry.compiled.clone());
+        }
+    }
+
+    let project_configs: Vec<event_filter_config::Model> = configs
+        .iter()
+        .filter(|c| c.project_id == Some(project_id))
+        .cloned()
+        .collect();
+    let version: ConfigVersion = project_configs.iter().map(|c| (c.id, c.update_time)).collect();
+    let unchanged = COMPILED_FILTER_CONFIGS
+        .read()
+        .unwrap()
+        .get(&project_id)
+        .filter(|entry| entry.version == version)
+        .map(|entry| entry.compiled.clone());
+    let compiled = match unchanged {
+        Some(compiled) => compiled,
+        None => {
+            let compiled = Arc::new(CompiledFilterConfig::compile(&project_configs));
+            tracing::info!("Compiled event filter config for project: {}", project_id);
+            compiled
+        }
+    };
+    COMPILED_FILTER_CONFIGS
+        .write()
+        .unwrap()
+        .insert(project_id, CompiledEntry { source: configs, version, compiled: compiled.clone() });
+    Ok(compiled)
+}
@@ -0,0 +1,95 @@
+//! Per-event logging of the report path.
+//!
+//! Info lines about a single event are sampled by its engine_event_id, so an
+//! event is either logged at every step or not at all. Whole payloads are
+//! only logged for the boxes and tasks listed in the Redis set
+//! `EVENT_LOG_FULL_KEY` (members `box:<sn>` / `task:<code>`), which can be
+//! changed at runtime, and `AsJson` renders them only when the record is
+//! actually written.
+
+use std::collections::HashSet;
+use std::fmt;
+use std::io;
+use std::sync::RwLock;
+use std::sync::atomic::{AtomicU64, Ordering};
+use std::time::Duration;
+
+use once_cell::sync::Lazy;
+use redis::Commands;
+use serde::Serialize;
+
+use crate::ctl::bs_model::BoxReportRequest;
+
+pub const EVENT_LOG_FULL_KEY: &str = "event_rs::event_log_full";
+const FULL_TARGETS_REFRESH: Duration = Duration::from_secs(10);
+
+/// One event in `SAMPLE_EVERY` is logged; 1 logs all of them.
+static SAMPLE_EVERY: AtomicU64 = AtomicU64::new(1);
+static FULL_TARGETS: Lazy<RwLock<HashSet<String>>> = Lazy::new(|| RwLock::new(HashSet::new()));
+
+pub fn set_sample_every(sample_every: u64) {
+    SAMPLE_EVERY.store(sample_every.max(1), Ordering::Relaxed);
+}
+
+/// Whether the info lines of this event are written.
+pub fn sampled(engine_event_id: &str) -> bool {
+    let every = SAMPLE_EVERY.load(Ordering::Relaxed);
+    every <= 1 || crc32fast::hash(engine_event_id.as_bytes()) as u64 % every == 0
+}
+
+/// Whether whole payloads of this report are logged.
+pub fn full(payload: &BoxReportRequest) -> bool {
+    let targets = FULL_TARGETS.read().unwrap();
+    if targets.is_empty() {
+        return false;
+    }
+    let listed = |prefix: &str, value: Option<&str>| {
+        value.is_some_and(|v| targets.contains(&format!("{}:{}", prefix, v)))
+    };
+    listed("box", payload.source.as_deref()) || listed("task", payload.task_code.as_deref())
+}
+
+/// Reloads the full-logging targets from Redis on a dedicated thread.
+pub fn spawn_full_targets_refresh(redis_client: redis::Client) {
+    std::thread::spawn(move || loop {
+        match redis_client
+            .get_connection()
+            .and_then(|mut conn| conn.smembers::<_, HashSet<String>>(EVENT_LOG_FULL_KEY))
+        {
+            Ok(targets) => {
+                let mut current = FULL_TARGETS.write().unwrap();
+                if *current != targets {
+                    tracing::info!("full event logging targets: {:?}", targets);
+                    *current = targets;
+                }
+            }
+            Err(err) => tracing::warn!("load full event logging targets failed: {}", err),
+        }
+        std::thread::sleep(FULL_TARGETS_REFRESH);
+    });
+}
+
+/// Displays a value as json, serialising it only when formatted.
+pub struct AsJson<'a, T>(pub &'a T);
+
+impl<T: Serialize> fmt::Display for AsJson<'_, T> {
+    fn fmt(&self, f: &mut fmt::Formatter<'_>) -> fmt::Result {
+        serde_json::to_writer(FmtWriter(f), self.0).map_err(|_| fmt::Error)
+    }
+}
+
+/// Streams the serialiser output into the formatter without a buffer.
+struct FmtWriter<'a, 'b>(&'a mut fmt::Formatter<'b>);
+
+impl io::Write for FmtWriter<'_, '_> {
+    fn write(&mut self, buf: &[u8]) -> io::Result<usize> {
+        // serde_json splits its output on char boundaries only.
+        let s = std::str::from_utf8(buf).map_err(|err| io::Error::new(io::ErrorKind::InvalidData, err))?;
+        self.0.write_str(s).map_err(io::Error::other)?;
+        Ok(buf.len())
+    }
+
+    fn flush(&mut self) -> io::Result<()> {
+        Ok(())
+    }
+}
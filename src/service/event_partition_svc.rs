@@ -0,0 +1,141 @@
+//! Rolling of the daily `event_time` partitions of the event table.
+//!
+//! The table is partitioned by `sql/event_0_partitioning.sql` into
+//! `p_history`, one `pYYYYMMDD` partition per day and the catch-all
+//! `p_future`. Every run splits the coming days off `p_future` and drops the
+//! partitions that are past the retention, which removes old events without
+//! deleting rows one by one. Runs are serialised across nodes by a Redis lock.
+
+use std::collections::BTreeSet;
+use std::time::Duration;
+
+use chrono::{Days, NaiveDate, Utc};
+use sea_orm::{ConnectionTrait, DbBackend, DbConn, EntityName, Statement};
+
+use crate::models::event;
+
+const MAINTENANCE_LOCK_KEY: &str = "event_rs::event_partition_maintenance";
+const MAINTENANCE_LOCK_SECONDS: u64 = 600;
+const HISTORY_PARTITION: &str = "p_history";
+const FUTURE_PARTITION: &str = "p_future";
+
+#[derive(Debug, Clone)]
+pub struct PartitionConfig {
+    /// Days after today that have a partition.
+    pub days_ahead: u64,
+    /// Days of events to keep, 0 keeps everything.
+    pub retention_days: u64,
+    pub interval: Duration,
+}
+
+/// Runs the maintenance now and then on every interval.
+pub fn spawn_maintenance(db: DbConn, redis_client: redis::Client, config: PartitionConfig) {
+    tokio::spawn(async move {
+        let mut ticker = tokio::time::interval(config.interval);
+        loop {
+            ticker.tick().await;
+            if !try_lock(&redis_client) {
+                continue;
+            }
+            if let Err(err) = maintain(&db, &config).await {
+                tracing::error!("event partition maintenance failed: {}", err);
+            }
+        }
+    });
+}
+
+fn try_lock(redis_client: &redis::Client) -> bool {
+    let mut cmd = redis::cmd("SET");
+    cmd.arg(MAINTENANCE_LOCK_KEY)
+        .arg(hostname())
+        .arg("NX")
+        .arg("EX")
+        .arg(MAINTENANCE_LOCK_SECONDS);
+    match redis_client
+        .get_connection()
+        .and_then(|mut conn| cmd.query::<Option<String>>(&mut conn))
+    {
+        Ok(reply) => reply.is_some(),
+        Err(err) => {
+            tracing::warn!("event partition maintenance lock failed: {}", err);
+            false
+        }
+    }
+}
+
+fn hostname() -> String {
+    std::env::var("HOSTNAME").unwrap_or_else(|_| "event_rs".to_string())
+}
+
+async fn maintain(db: &DbConn, config: &PartitionConfig) -> anyhow::Result<()> {
+    let table = event::Entity.table_name();
+    let partitions = list_partitions(db, table).await?;
+    if !partitions.iter().any(|p| p == FUTURE_PARTITION) {
+        tracing::warn!("{} has no {} partition, see sql/event_0_partitioning.sql", table, FUTURE_PARTITION);
+        return Ok(());
+    }
+    let days: BTreeSet<NaiveDate> = partitions.iter().filter_map(|p| day_of(p)).collect();
+    // event_time 存的是 UTC 时间, 分区按 UTC 日期划分
+    let today = Utc::now().date_naive();
+
+    // 只能在最后一个分区之后追加, 从已有的最后一天往后补到 today + days_ahead
+    let last_day = today + Days::new(config.days_ahead);
+    let mut day = days.last().map_or(today, |d| *d + Days::new(1));
+    let mut added = Vec::new();
+    while day <= last_day {
+        added.push(format!(
+            "PARTITION {} VALUES LESS THAN ('{}')",
+            partition_name(day),
+            (day + Days::new(1)).format("%Y-%m-%d 00:00:00")
+        ));
+        day = day + Days::new(1);
+    }
+    if !added.is_empty() {
+        let sql = format!(
+            "ALTER TABLE {} REORGANIZE PARTITION {} INTO ({}, PARTITION {} VALUES LESS THAN (MAXVALUE))",
+            table,
+            FUTURE_PARTITION,
+            added.join(", "),
+            FUTURE_PARTITION
+        );
+        db.execute_unprepared(&sql).await?;
+        tracing::info!("{}: added {} daily partitions up to {}", table, added.len(), last_day);
+    }
+
+    if config.retention_days == 0 {
+        return Ok(());
+    }
+    // 分区 pX 只含 X 次日零点之前的事件, p_history 只含第一个按天分区之前的事件
+    let cutoff = today - Days::new(config.retention_days);
+    let mut expired: Vec<String> = days.iter().filter(|d| **d < cutoff).map(|d| partition_name(*d)).collect();
+    if partitions.iter().any(|p| p == HISTORY_PARTITION) && days.first().is_some_and(|d| *d <= cutoff) {
+        expired.insert(0, HISTORY_PARTITION.to_string());
+    }
+    if !expired.is_empty() {
+        let sql = format!("ALTER TABLE {} DROP PARTITION {}", table, expired.join(", "));
+        db.execute_unprepared(&sql).await?;
+        tracing::info!("{}: dropped partitions {:?}, retention {} days", table, expired, config.retention_days);
+    }
+    Ok(())
+}
+
+async fn list_partitions(db: &DbConn, table: &str) -> Result<Vec<String>, sea_orm::DbErr> {
+    let rows = db
+        .query_all(Statement::from_sql_and_values(
+            DbBackend::MySql,
+            "SELECT PARTITION_NAME FROM information_schema.PARTITIONS \
+             WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND PARTITION_NAME IS NOT NULL \
+             ORDER BY PARTITION_ORDINAL_POSITION",
+            [table.into()],
+        ))
+        .await?;
+    rows.iter().map(|row| row.try_get::<String>("", "PARTITION_NAME")).collect()
+}
+
+fn partition_name(day: NaiveDate) -> String {
+    format!("p{}", day.format("%Y%m%d"))
+}
+
+fn day_of(partition: &str) -> Option<NaiveDate> {
+    NaiveDate::parse_from_str(partition.strip_prefix('p')?, "%Y%m%d").ok()
+}
@@ -1,29 +1,59 @@
 //! High-level business logic for event processing.
 
+use std::collections::HashMap;
+use std::sync::{Arc, RwLock};
+
 use crate::ctl::bs_model::BoxReportRequest;
 use crate::models::{algorithm, event_filter_config};
-use crate::service::filters::{other_filter, plate_filter};
-use chrono::NaiveTime;
+use crate::service::filters::{other_filter::{self, OtherRules}, plate_filter::{self, PlateRules}};
+use crate::service::near_cache::{CachedFlag, Invalidate};
+use crate::service::recent_event_svc;
+use chrono::{Datelike, NaiveDate, NaiveTime, Timelike};
+use once_cell::sync::Lazy;
 use redis::Commands;
 use serde_json::Value;
+use serde_json::value::RawValue;
+
+/// The filter configs of one project, compiled into typed rules.
+#[derive(Debug, Default)]
+pub struct CompiledFilterConfig {
+    pub plate: Option<PlateRules>,
+    pub other: Option<OtherRules>,
+}
+
+impl CompiledFilterConfig {
+    /// Compiles the `plate` and `other` setting groups of a project.
+    pub fn compile(configs: &[event_filter_config::Model]) -> Self {
+        Self {
+            plate: get_config(configs, "plate").map(PlateRules::compile),
+            other: get_config(configs, "other").map(OtherRules::compile),
+        }
+    }
+}
 
 /// Orchestrates event filtering.
 pub fn filter_event(
     vo: &mut BoxReportRequest,
-    configs: &[event_filter_config::Model],
+    filter_config: &CompiledFilterConfig,
+    node_affinity: bool,
     redis_conn: &mut impl Commands,
 ) -> (bool, Option<&'static str>) {
-    // Find plate filter config
-    if let Some(plate_config) = get_config(configs, "plate") {
-        let (should_filter, reason) = plate_filter::filter(vo, plate_config, redis_conn);
+    // 事件冷却时间平台侧过滤
+    if recent_event_svc::within_cooldown(vo) {
+        return (true, Some("coolingSecond"));
+    }
+
+    // Plate filter rules
+    if let Some(plate_rules) = filter_config.plate.as_ref() {
+        let (should_filter, reason) = plate_filter::filter(vo, plate_rules, redis_conn);
         if should_filter {
             return (true, reason);
         }
     }
 
-    // Find other filter config
-    if let Some(other_config) = get_config(configs, "other") {
-        let (should_filter, reason) = other_filter::filter(vo, other_config, redis_conn);
+    // Other filter rules
+    if let Some(other_rules) = filter_config.other.as_ref() {
+        let (should_filter, reason) = other_filter::filter(vo, other_rules, node_affinity, redis_conn);
         if should_filter {
             return (true, reason);
         }
@@ -48,36 +78,41 @@ pub enum PersonnelCheckResult {
     Disable,
 }
 
+/// Global manual review switch, `"1"` when enabled.
+static GLOBAL_REVIEW: CachedFlag = CachedFlag::new("global_review", "Global_Review", "1");
+
+/// Compiled DQ windows keyed by the raw `openDqTime` json, which changes with the task config.
+static DQ_WINDOWS: Lazy<RwLock<HashMap<String, Arc<DqWindow>>>> = Lazy::new(|| RwLock::new(HashMap::new()));
+const DQ_WINDOWS_MAX: usize = 4096;
+
+const DAY_MS: i64 = 86_400_000;
+/// `NaiveDate::num_days_from_ce` of 1970-01-01.
+const UNIX_EPOCH_DAYS_FROM_CE: i64 = 719_163;
+
+/// Global review switch, for the invalidation listener.
+pub fn global_review_flag() -> &'static dyn Invalidate {
+    &GLOBAL_REVIEW
+}
+
 /// Implements the logic to check if an event should go to manual review.
 pub fn personnel_check(
     vo: &BoxReportRequest,
     algorithm: &algorithm::Model,
     redis_conn: &mut impl Commands,
 ) -> PersonnelCheckResult {
-    let Some(extra_data) = vo.extra_data.as_ref() else { return PersonnelCheckResult::Disable };
-    let Some(alg_list) = extra_data.get("originalConfig").and_then(|oc| oc.get("algList")).and_then(|al| al.as_array()) else { return PersonnelCheckResult::Disable };
-    let original_violation_index = vo.original_violation_index.unwrap_or(0) as usize;
-    if original_violation_index >= alg_list.len() {
-        return PersonnelCheckResult::Disable;
-    }
-    let Some(alg_param) = alg_list[original_violation_index].get("algParam") else { return PersonnelCheckResult::Disable };
+    let Some(alg_param) = vo.extra_slots.alg_param.as_ref() else { return PersonnelCheckResult::Disable };
 
     // Check for "isOpenDQ" directly in the algorithm parameters
-    if let Some(is_open_dq) = alg_param.get("isOpenDQ").and_then(|v| v.as_i64()) {
+    if let Some(is_open_dq) = alg_param.is_open_dq {
         if is_open_dq == 0 { // 0 is disable
             return PersonnelCheckResult::Disable;
         }
         // If it's 1 (enable), check time constraints
-        return check_dq_time_constraints(vo, alg_param);
+        return check_dq_time_constraints(vo, alg_param.open_dq_time.as_deref());
     }
 
-    // If not in alg_param, check global Redis key
-    let global_review_enabled: bool = redis_conn
-        .get::<_, String>("Global_Review")
-        .map(|s| s == "1") // Assuming "1" means enabled
-        .unwrap_or(false);
-
-    if !global_review_enabled {
+    // If not in alg_param, check global switch
+    if !GLOBAL_REVIEW.get(redis_conn) {
         return PersonnelCheckResult::Disable;
     }
 
@@ -90,37 +125,75 @@ pub fn personnel_check(
     PersonnelCheckResult::Enable
 }
 
-fn check_dq_time_constraints(vo: &BoxReportRequest, alg_param: &Value) -> PersonnelCheckResult {
+fn check_dq_time_constraints(vo: &BoxReportRequest, open_dq_time: Option<&RawValue>) -> PersonnelCheckResult {
     let Some(event_time) = vo.event_time else { return PersonnelCheckResult::Disable };
-    let Some(open_dq_time) = alg_param.get("openDqTime") else { return PersonnelCheckResult::Enable }; // No time constraint means enabled
-
-    // Check date range
-    if let (Some(start_str), Some(end_str)) = (
-        open_dq_time.get("openDqStartDate").and_then(|v| v.as_str()),
-        open_dq_time.get("openDqEndDate").and_then(|v| v.as_str()),
-    ) {
-        if let (Ok(start_date), Ok(end_date)) = (
-            chrono::NaiveDate::parse_from_str(start_str, "%Y-%m-%d"),
-            chrono::NaiveDate::parse_from_str(end_str, "%Y-%m-%d"),
-        ) {
-            if event_time.date_naive() < start_date || event_time.date_naive() > end_date {
-                return PersonnelCheckResult::Disable;
-            }
-        }
+    let Some(open_dq_time) = open_dq_time else { return PersonnelCheckResult::Enable }; // No time constraint means enabled
+
+    if dq_window(open_dq_time).allows(event_time.timestamp_millis()) {
+        PersonnelCheckResult::Enable
+    } else {
+        PersonnelCheckResult::Disable
     }
+}
 
-    // Check time range
-    let start_time_str = open_dq_time.get("openDqStartTime").and_then(|v| v.as_str()).unwrap_or("00:00");
-    let end_time_str = open_dq_time.get("openDqEndTime").and_then(|v| v.as_str()).unwrap_or("23:59");
+fn dq_window(open_dq_time: &RawValue) -> Arc<DqWindow> {
+    if let Some(window) = DQ_WINDOWS.read().unwrap().get(open_dq_time.get()) {
+        return window.clone();
+    }
+    let config = serde_json::from_str::<Value>(open_dq_time.get()).unwrap_or(Value::Null);
+    let window = Arc::new(DqWindow::compile(&config));
+    let mut windows = DQ_WINDOWS.write().unwrap();
+    if windows.len() >= DQ_WINDOWS_MAX {
+        windows.clear();
+    }
+    windows.insert(open_dq_time.get().to_string(), window.clone());
+    window
+}
 
-    if let (Ok(start_time), Ok(end_time)) = (
-        NaiveTime::parse_from_str(start_time_str, "%H:%M"),
-        NaiveTime::parse_from_str(end_time_str, "%H:%M"),
-    ) {
-        if event_time.time() < start_time || event_time.time() > end_time {
-            return PersonnelCheckResult::Disable;
+/// `openDqTime` compiled into UTC epoch-day and millis-of-day bounds, both inclusive.
+#[derive(Debug)]
+struct DqWindow {
+    /// From `openDqStartDate` / `openDqEndDate`, `None` when absent or malformed.
+    days: Option<(i64, i64)>,
+    /// From `openDqStartTime` / `openDqEndTime` (`HH:mm`, default 00:00 - 23:59).
+    times: Option<(i64, i64)>,
+}
+
+impl DqWindow {
+    fn compile(open_dq_time: &Value) -> Self {
+        let date = |key: &str| {
+            open_dq_time
+                .get(key)
+                .and_then(|v| v.as_str())
+                .and_then(|s| NaiveDate::parse_from_str(s, "%Y-%m-%d").ok())
+                .map(|d| d.num_days_from_ce() as i64 - UNIX_EPOCH_DAYS_FROM_CE)
+        };
+        let time = |key: &str, default: &str| {
+            let s = open_dq_time.get(key).and_then(|v| v.as_str()).unwrap_or(default);
+            NaiveTime::parse_from_str(s, "%H:%M")
+                .ok()
+                .map(|t| t.num_seconds_from_midnight() as i64 * 1000)
+        };
+
+        Self {
+            days: date("openDqStartDate").zip(date("openDqEndDate")),
+            times: time("openDqStartTime", "00:00").zip(time("openDqEndTime", "23:59")),
         }
     }
 
-    PersonnelCheckResult::Enable
+    fn allows(&self, event_time_ms: i64) -> bool {
+        let day = event_time_ms.div_euclid(DAY_MS);
+        if let Some((start, end)) = self.days {
+            if day < start || day > end {
+                return false;
+            }
+        }
+        let time_of_day = event_time_ms.rem_euclid(DAY_MS);
+        if let Some((start, end)) = self.times {
+            if time_of_day < start || time_of_day > end {
+                return false;
+            }
+        }
+        true
+    }
 }
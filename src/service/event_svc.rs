@@ -1,13 +1,23 @@
-use crate::models::event;
-use anyhow::{Context, Result};
-use sea_orm::{ActiveModelTrait, DbConn, DbErr, IntoActiveModel, Set};
+use std::pin::Pin;
+
+use crate::models::{event, prelude::*};
+use anyhow::Result;
+use chrono::NaiveDateTime;
+use futures::Stream;
+use sea_orm::{
+    ActiveModelTrait, ColumnTrait, DbConn, DbErr, EntityTrait, IntoActiveModel, QueryFilter, QuerySelect, RuntimeErr,
+    Set, SqlErr,
+};
+
+/// Converts an event into an active model with every field set for insertion.
+/// The model is moved as is, without a round-trip through json.
+fn to_insert_model(event_data: event::Model) -> event::ActiveModel {
+    event_data.into_active_model().reset_all()
+}
 
 /// Creates a new event in the database.
 pub async fn create_event(db: &DbConn, event_data: event::Model) -> Result<event::Model> {
-    let event_json =
-        serde_json::to_value(event_data).context("event_data json serialization failed")?;
-    let active_model = event::ActiveModel::from_json(event_json)
-        .context("event_data json deserialization failed")?;
+    let active_model = to_insert_model(event_data);
 
     let inserted_id_for_log = match &active_model.engine_event_id {
         // Borrow active_model.id
@@ -25,6 +35,83 @@ pub async fn create_event(db: &DbConn, event_data: event::Model) -> Result<event
     Ok(inserted_event)
 }
 
+/// Creates several events with one multi-row insert.
+/// The event ids are generated by the caller, so nothing is read back.
+pub async fn create_events(db: &DbConn, events: Vec<event::Model>) -> Result<()> {
+    if events.is_empty() {
+        return Ok(());
+    }
+    let count = events.len();
+    let active_models: Vec<_> = events.into_iter().map(to_insert_model).collect();
+
+    Event::insert_many(active_models)
+        .exec(db)
+        .await
+        .map_err(|err| anyhow::anyhow!("Error inserting {} events, err:{}", count, err))?;
+    Ok(())
+}
+
+/// Inserts one event and keeps the database error, so that callers can tell
+/// a bad row from an unavailable database.
+pub async fn insert_event(db: &DbConn, event_data: event::Model) -> Result<(), DbErr> {
+    Event::insert(to_insert_model(event_data))
+        .exec_without_returning(db)
+        .await?;
+    Ok(())
+}
+
+/// Whether writing the same rows again may succeed: the connection failed,
+/// or MySQL gave up on a lock (1205 lock wait timeout, 1213 deadlock).
+/// Any other error is caused by the rows themselves.
+pub fn is_transient(err: &DbErr) -> bool {
+    let runtime = match err {
+        DbErr::ConnectionAcquire(_) | DbErr::Conn(_) => return true,
+        DbErr::Exec(runtime) | DbErr::Query(runtime) => runtime,
+        _ => return false,
+    };
+    match runtime {
+        RuntimeErr::SqlxError(sqlx::Error::Database(db_err)) => db_err
+            .try_downcast_ref::<sqlx::mysql::MySqlDatabaseError>()
+            .is_some_and(|e| matches!(e.number(), 1205 | 1213)),
+        RuntimeErr::SqlxError(
+            sqlx::Error::Io(_)
+            | sqlx::Error::Tls(_)
+            | sqlx::Error::Protocol(_)
+            | sqlx::Error::PoolTimedOut
+            | sqlx::Error::PoolClosed
+            | sqlx::Error::WorkerCrashed,
+        ) => true,
+        _ => false,
+    }
+}
+
+/// Whether the row is already stored, e.g. by a run that crashed before its
+/// journal record was acknowledged.
+pub fn is_duplicate(err: &DbErr) -> bool {
+    matches!(err.sql_err(), Some(SqlErr::UniqueConstraintViolation(_)))
+}
+
+/// Task code, event type and event time of the events of a time range that
+/// were not filtered, streamed so the caller can keep only what it needs.
+/// The range limits the scan to the partitions it covers.
+pub async fn stream_unfiltered_event_times<'a>(
+    db: &'a DbConn,
+    from: NaiveDateTime,
+    until: NaiveDateTime,
+) -> Result<
+    Pin<Box<dyn Stream<Item = Result<(Option<String>, Option<String>, NaiveDateTime), DbErr>> + Send + 'a>>,
+    DbErr,
+> {
+    Event::find()
+        .select_only()
+        .columns([event::Column::TaskCode, event::Column::EventType, event::Column::EventTime])
+        .filter(event::Column::EventTime.between(from, until))
+        .filter(event::Column::Marking.ne("filtered"))
+        .into_tuple()
+        .stream(db)
+        .await
+}
+
 /// Updates an existing event by its ID. All fields will be updated.
 pub async fn update_event(
     db: &DbConn,
@@ -0,0 +1,88 @@
+//! Group-commit writer for the event table.
+//!
+//! Concurrent requests hand their event to a single writer task, which
+//! coalesces whatever arrives within a short linger into one multi-row insert
+//! (one statement, one commit). Each caller awaits the outcome of its own row.
+
+use std::time::Duration;
+
+use anyhow::{Result, anyhow};
+use sea_orm::DbConn;
+use tokio::sync::{mpsc, oneshot};
+use tokio::time::Instant;
+
+use crate::models::event;
+use crate::service::{event_svc, metrics_svc};
+
+struct PendingWrite {
+    event: event::Model,
+    done: oneshot::Sender<Result<event::Model>>,
+    queued_at: Instant,
+}
+
+/// Handle of the writer task.
+#[derive(Clone)]
+pub struct EventWriter {
+    tx: mpsc::Sender<PendingWrite>,
+}
+
+impl EventWriter {
+    /// Starts the writer task. A batch is flushed when it holds `max_batch`
+    /// events or `linger` after its first event arrived.
+    pub fn spawn(db: DbConn, max_batch: usize, linger: Duration) -> Self {
+        let (tx, rx) = mpsc::channel(max_batch * 4);
+        tokio::spawn(run_writer(db, rx, max_batch, linger));
+        Self { tx }
+    }
+
+    /// Inserts an event as part of the next batch and returns it once committed.
+    pub async fn write(&self, event: event::Model) -> Result<event::Model> {
+        let (done, result) = oneshot::channel();
+        self.tx
+            .send(PendingWrite { event, done, queued_at: Instant::now() })
+            .await
+            .map_err(|_| anyhow!("event writer is stopped"))?;
+        result.await.map_err(|_| anyhow!("event writer dropped the write"))?
+    }
+}
+
+async fn run_writer(db: DbConn, mut rx: mpsc::Receiver<PendingWrite>, max_batch: usize, linger: Duration) {
+    let mut batch: Vec<PendingWrite> = Vec::with_capacity(max_batch);
+    while let Some(first) = rx.recv().await {
+        batch.push(first);
+        let deadline = Instant::now() + linger;
+        while batch.len() < max_batch {
+            match tokio::time::timeout_at(deadline, rx.recv()).await {
+                Ok(Some(write)) => batch.push(write),
+                _ => break,
+            }
+        }
+        flush(&db, &mut batch).await;
+    }
+}
+
+/// Writes the batch with one insert. When that fails, the rows are retried one
+/// by one, so a single bad row does not fail the writes it was batched with.
+async fn flush(db: &DbConn, batch: &mut Vec<PendingWrite>) {
+    for write in batch.iter() {
+        metrics_svc::observe_queue_wait("event_writer", write.queued_at.elapsed());
+    }
+    let events: Vec<event::Model> = batch.iter().map(|w| w.event.clone()).collect();
+    match event_svc::create_events(db, events).await {
+        Ok(()) => {
+            for write in batch.drain(..) {
+                let _ = write.done.send(Ok(write.event));
+            }
+        }
+        Err(err) if batch.len() == 1 => {
+            let write = batch.pop().unwrap();
+            let _ = write.done.send(Err(err));
+        }
+        Err(err) => {
+            tracing::warn!("group insert of {} events failed, retrying one by one: {}", batch.len(), err);
+            for write in batch.drain(..) {
+                let _ = write.done.send(event_svc::create_event(db, write.event).await);
+            }
+        }
+    }
+}
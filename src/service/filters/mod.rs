@@ -1,2 +1,4 @@
 pub mod plate_filter;
 pub mod other_filter;
+pub mod pos_index;
+pub mod rules;
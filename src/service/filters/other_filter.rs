@@ -1,207 +1,193 @@
 //! Other event filtering logic (e.g., based on position).
 
+use std::collections::HashSet;
+
+use chrono::Utc;
 use redis::Commands;
-use serde_json::{Value, json};
+use serde_json::Value;
 
 use crate::ctl::bs_model::BoxReportRequest;
+use crate::service::filters::pos_index::{self, SamePosCheck};
+use crate::service::filters::rules;
+
+/// Ring size used when `posRingSize` is not configured.
+const DEFAULT_POS_RING_SIZE: usize = 8;
+
+/// Other filter config compiled from the `other` setting group.
+/// A rule is `None` when it is absent, disabled or malformed.
+#[derive(Debug, Default)]
+pub struct OtherRules {
+    /// Union of the event types referenced by any active rule.
+    event_types: HashSet<String>,
+    ignore_same_pos: Option<SamePosRule>,
+    ignore_all: Option<HashSet<String>>,
+    ignore_part: Option<PartEventsRule>,
+}
+
+#[derive(Debug)]
+struct SamePosRule {
+    event_types: HashSet<String>,
+    check: SamePosCheck,
+}
+
+#[derive(Debug)]
+struct PartEventsRule {
+    event_types: HashSet<String>,
+    event_result: String,
+}
+
+impl OtherRules {
+    /// Compiles the raw `other` config json.
+    pub fn compile(config: &Value) -> Self {
+        let mut compiled = OtherRules::default();
+
+        compiled.ignore_same_pos = config
+            .get("ignoreSamePosEvents")
+            .filter(|c| rules::is_enabled(c))
+            .and_then(|c| {
+                let ring_size = c
+                    .get("posRingSize")
+                    .and_then(|v| v.as_u64())
+                    .map_or(DEFAULT_POS_RING_SIZE, |v| v as usize)
+                    .clamp(1, pos_index::MAX_RING);
+                Some(SamePosRule {
+                    event_types: rules::string_set(c, "eventTypes")?,
+                    check: SamePosCheck {
+                        overlap_percent: c.get("posOverlapPercent").and_then(|v| v.as_f64())?,
+                        cooling_seconds: c.get("coolingSeconds").and_then(|v| v.as_u64())?,
+                        ring_size,
+                    },
+                })
+            });
+
+        compiled.ignore_all = config
+            .get("ignoreAllEvents")
+            .filter(|c| rules::is_enabled(c))
+            .and_then(|c| rules::string_set(c, "eventTypes"));
+
+        compiled.ignore_part = config
+            .get("ignorePartEvents")
+            .filter(|c| rules::is_enabled(c))
+            .and_then(|c| {
+                Some(PartEventsRule {
+                    event_types: rules::string_set(c, "eventTypes")?,
+                    event_result: c.get("eventResult").and_then(|v| v.as_str())?.to_string(),
+                })
+            });
+
+        let mut event_types = HashSet::new();
+        let rule_sets = [
+            compiled.ignore_same_pos.as_ref().map(|r| &r.event_types),
+            compiled.ignore_all.as_ref(),
+            compiled.ignore_part.as_ref().map(|r| &r.event_types),
+        ];
+        for set in rule_sets.into_iter().flatten() {
+            event_types.extend(set.iter().cloned());
+        }
+        compiled.event_types = event_types;
+        compiled
+    }
+
+    /// Returns `false` when no rule applies to the event type, so the whole group can be skipped.
+    pub fn applies_to(&self, event_type: &str) -> bool {
+        self.event_types.contains(event_type)
+    }
+}
 
 /// The main filter function for other events.
 /// Returns `(true, reason)` if the event should be filtered.
 pub fn filter(
     vo: &mut BoxReportRequest,
-    other_json_obj: &Value,
+    rules: &OtherRules,
+    node_affinity: bool,
     redis_conn: &mut impl Commands,
 ) -> (bool, Option<&'static str>) {
-    if ignore_same_pos_events(vo, other_json_obj, redis_conn) {
+    let Some(event_type) = vo.event_type.as_deref() else { return (false, None) };
+    if !rules.applies_to(event_type) {
+        return (false, None);
+    }
+
+    if ignore_same_pos_events(vo, event_type, rules, node_affinity, redis_conn) {
         return (true, Some("samePosition"));
     }
-    if ignore_all_events(vo, other_json_obj) {
+    if ignore_all_events(event_type, rules) {
         return (true, Some("ignoreAllEvents"));
     }
-    if ignore_part_events(vo, other_json_obj) {
+    if ignore_part_events(vo, event_type, rules) {
         return (true, Some("ignorePartEvents"));
     }
     (false, None)
 }
 
-fn ignore_all_events(vo: &BoxReportRequest, config: &Value) -> bool {
-    let Some(config) = config.get("ignoreAllEvents") else { return false };
-    if !config.get("enable").and_then(|v| v.as_bool()).unwrap_or(false) {
-        return false;
-    }
-    let Some(event_types) = config.get("eventTypes").and_then(|v| v.as_array()) else { return false };
-    let Some(event_type) = vo.event_type.as_deref() else { return false };
-    
-    event_types.iter().any(|v| v.as_str() == Some(event_type))
+fn ignore_all_events(event_type: &str, rules: &OtherRules) -> bool {
+    let Some(event_types) = rules.ignore_all.as_ref() else { return false };
+    event_types.contains(event_type)
 }
 
-fn ignore_part_events(vo: &BoxReportRequest, config: &Value) -> bool {
-    let Some(config) = config.get("ignorePartEvents") else { return false };
-    if !config.get("enable").and_then(|v| v.as_bool()).unwrap_or(false) {
+fn ignore_part_events(vo: &BoxReportRequest, event_type: &str, rules: &OtherRules) -> bool {
+    let Some(rule) = rules.ignore_part.as_ref() else { return false };
+    if !rule.event_types.contains(event_type) {
         return false;
     }
-    let Some(event_types) = config.get("eventTypes").and_then(|v| v.as_array()) else { return false };
-    let Some(expected_result) = config.get("eventResult").and_then(|v| v.as_str()) else { return false };
-    let Some(event_type) = vo.event_type.as_deref() else { return false };
 
-    if !event_types.iter().any(|v| v.as_str() == Some(event_type)) {
-        return false;
-    }
-    
-    let Some(actual_result) = vo.extra_data.as_ref()
-        .and_then(|e| e.get("eventResult"))
-        .and_then(|er| er.get("result"))
-        .and_then(|r| r.as_str()) else { return false };
+    let Some(actual_result) = vo.extra_slots.event_result.as_deref() else { return false };
 
-    actual_result == expected_result
+    actual_result == rule.event_result
 }
 
 
 fn ignore_same_pos_events(
     vo: &BoxReportRequest,
-    config: &Value,
+    event_type: &str,
+    rules: &OtherRules,
+    node_affinity: bool,
     redis_conn: &mut impl Commands,
 ) -> bool {
-    let Some(config) = config.get("ignoreSamePosEvents") else { return false };
-    if !config.get("enable").and_then(|v| v.as_bool()).unwrap_or(false) {
+    let Some(rule) = rules.ignore_same_pos.as_ref() else { return false };
+    if !rule.event_types.contains(event_type) {
         return false;
     }
-    let Some(event_types) = config.get("eventTypes").and_then(|v| v.as_array()) else { return false };
-    let Some(event_type) = vo.event_type.as_deref() else { return false };
-    if !event_types.iter().any(|v| v.as_str() == Some(event_type)) {
+
+    if vo.extra_data.is_none() {
         return false;
     }
 
-    let Some(cooling_seconds) = config.get("coolingSeconds").and_then(|v| v.as_u64()) else { return false };
-    let Some(pos_overlap_percent) = config.get("posOverlapPercent").and_then(|v| v.as_f64()) else { return false };
-    
-    let Some(extra_data) = vo.extra_data.as_ref() else { return false };
-
-    if let Some(position) = extra_data.get("position").and_then(|p| p.as_array()) {
+    let target_box = match vo.extra_slots.position.as_ref() {
         // Flow events logic
-        ignore_same_pos_flow_events(vo, cooling_seconds, pos_overlap_percent, position, redis_conn)
-    } else {
+        Some(position) => flow_event_box(position),
         // Other events logic (using snapshot)
-        ignore_same_pos_other_events(vo, cooling_seconds, pos_overlap_percent, redis_conn)
-    }
-}
+        None => snapshot_box(vo),
+    };
+    let Some(target_box) = target_box else { return false };
 
-fn ignore_same_pos_flow_events(
-    vo: &BoxReportRequest,
-    cooling_seconds: u64,
-    pos_overlap_percent: f64,
-    position: &Vec<Value>,
-    redis_conn: &mut impl Commands,
-) -> bool {
-    if position.len() < 4 { return false; }
     let key = format!(
-        "POS_KEY:{}:{}:{}",
+        "POS_RING:{}:{}:",
         vo.task_code.as_deref().unwrap_or(""), // Assuming projectId is not yet available, use task_code
-        vo.event_type.as_deref().unwrap_or(""),
-        "" // No specific identifier for flow events other than task/event type
+        event_type
     );
-
-    let base_position_str: Result<String, _> = redis_conn.get(&key);
-    
-    if let Ok(base_pos_str) = base_position_str {
-        if let Ok(base_pos) = serde_json::from_str::<Vec<f64>>(&base_pos_str) {
-             if base_pos.len() < 4 {
-                let _: Result<(), _> = redis_conn.set_ex(&key, json!(position).to_string(), cooling_seconds);
-                return false;
-             }
-            let rate = calculate_flow_rate(
-                &position.iter().map(|v| v.as_f64().unwrap_or(0.0)).collect::<Vec<_>>(),
-                &base_pos
-            );
-            if rate > pos_overlap_percent {
-                return true; // Filter
-            }
-        }
-    }
-    
-    let _: Result<(), _> = redis_conn.set_ex(&key, json!(position).to_string(), cooling_seconds);
-    false
-}
-
-fn calculate_flow_rate(pos1: &[f64], pos2: &[f64]) -> f64 {
-    let (x1, y1, x2, y2) = (pos1[0], pos1[1], pos1[2], pos1[3]);
-    let (bx1, by1, bx2, by2) = (pos2[0], pos2[1], pos2[2], pos2[3]);
-    
-    let inner_x1 = x1.max(bx1);
-    let inner_y1 = y1.max(by1);
-    let inner_x2 = x2.min(bx2);
-    let inner_y2 = y2.min(by2);
-
-    let inner_area = (inner_x2 - inner_x1).max(0.0) * (inner_y2 - inner_y1).max(0.0);
-    let area1 = (x2 - x1) * (y2 - y1);
-    let area2 = (bx2 - bx1) * (by2 - by1);
-
-    if (area1 + area2 - inner_area) == 0.0 { return 0.0; }
-    inner_area / (area1 + area2 - inner_area)
+    let now_ms = Utc::now().timestamp_millis();
+    pos_index::check_and_insert(&key, &target_box, &rule.check, node_affinity, now_ms, redis_conn)
 }
 
-
-fn ignore_same_pos_other_events(
-    vo: &BoxReportRequest,
-    cooling_seconds: u64,
-    pos_overlap_percent: f64,
-    redis_conn: &mut impl Commands,
-) -> bool {
-    let Some(snapshot) = vo.snapshot.as_ref().and_then(|s| s.as_array()) else { return false };
-    if snapshot.is_empty() { return false; }
-    let Some(pts) = snapshot[0].get("pts").and_then(|p| p.as_array()) else { return false };
-    if !is_right_pts(pts) { return false; }
-    
-    let key = format!(
-        "POS_KEY:{}:{}:{}",
-        vo.task_code.as_deref().unwrap_or(""),
-        vo.event_type.as_deref().unwrap_or(""),
-        ""
-    );
-    
-    let base_pts_str: Result<String, _> = redis_conn.get(&key);
-    
-    if let Ok(base_pts_str) = base_pts_str {
-        if let Ok(base_pts) = serde_json::from_str::<Vec<Vec<f64>>>(&base_pts_str) {
-            if !is_right_pts_f64(&base_pts) {
-                let _: Result<(), _> = redis_conn.set_ex(&key, json!(pts).to_string(), cooling_seconds);
-                return false;
-            }
-            let pts_f64 = pts.iter().map(|p| {
-                p.as_array().unwrap().iter().map(|v| v.as_f64().unwrap_or(0.0)).collect::<Vec<_>>()
-            }).collect::<Vec<_>>();
-
-            let rate = calculate_other_rate(&pts_f64, &base_pts);
-            if rate > pos_overlap_percent {
-                return true; // Filter
-            }
-        }
+/// `position` of flow events is `[x1, y1, x2, y2, ...]`.
+fn flow_event_box(position: &[f64]) -> Option<[f64; 4]> {
+    if position.len() < 4 {
+        return None;
     }
-
-    let _: Result<(), _> = redis_conn.set_ex(&key, json!(pts).to_string(), cooling_seconds);
-    false
+    Some([position[0], position[1], position[2], position[3]])
 }
 
-fn calculate_other_rate(pts1: &[Vec<f64>], pts2: &[Vec<f64>]) -> f64 {
-    let (x1, y1) = (pts1[0][0], pts1[0][1]);
-    let (x2, y2) = (pts1[1][0], pts1[1][1]);
-    let (bx1, by1) = (pts2[0][0], pts2[0][1]);
-    let (bx2, by2) = (pts2[1][0], pts2[1][1]);
-
-    let inner_x1 = x1.max(bx1);
-    let inner_y1 = y1.max(by1);
-    let inner_x2 = x2.min(bx2);
-    let inner_y2 = y2.min(by2);
-
-    let inner_area = (inner_x2 - inner_x1).max(0.0) * (inner_y2 - inner_y1).max(0.0);
-    let area1 = (x2 - x1) * (y2 - y1);
-    let area2 = (bx2 - bx1) * (by2 - by1);
-
-    if (area1 + area2 - inner_area) == 0.0 { return 0.0; }
-    inner_area / (area1 + area2 - inner_area)
+/// Other events use the first two points of the first snapshot, `[[x1, y1], [x2, y2]]`.
+fn snapshot_box(vo: &BoxReportRequest) -> Option<[f64; 4]> {
+    let snapshot = vo.snapshot.as_ref().and_then(|s| s.as_array())?;
+    let pts = snapshot.first()?.get("pts").and_then(|p| p.as_array())?;
+    if !is_right_pts(pts) {
+        return None;
+    }
+    let point = |i: usize, j: usize| pts[i][j].as_f64().unwrap_or(0.0);
+    Some([point(0, 0), point(0, 1), point(1, 0), point(1, 1)])
 }
 
-
 fn is_right_pts(pts: &[Value]) -> bool {
     if pts.len() < 2 { return false; }
     let Some(pts1) = pts[0].as_array() else { return false; };
@@ -210,10 +196,3 @@ fn is_right_pts(pts: &[Value]) -> bool {
     if pts2.len() < 2 { return false; }
     true
 }
-
-fn is_right_pts_f64(pts: &[Vec<f64>]) -> bool {
-    if pts.len() < 2 { return false; }
-    if pts[0].len() < 2 { return false; }
-    if pts[1].len() < 2 { return false; }
-    true
-}
@@ -1,41 +1,209 @@
 //! Plate-related event filtering logic.
 
+use std::collections::HashSet;
+
+use aho_corasick::AhoCorasick;
 use redis::Commands;
 use serde_json::Value;
 
 use crate::ctl::bs_model::BoxReportRequest;
+use crate::service::filters::rules::{self, ColorPalette};
 
 const PLATE_COLOR_YELLOW: &[&str] = &["s_yellow", "d_yellow"];
 
+/// Plate filter config compiled from the `plate` setting group.
+/// A rule is `None` when it is absent, disabled or malformed.
+#[derive(Debug, Default)]
+pub struct PlateRules {
+    /// Union of the event types referenced by any active rule.
+    event_types: HashSet<String>,
+    palette: ColorPalette,
+    only_yellow_plate: Option<HashSet<String>>,
+    ignore_no_plate: Option<HashSet<String>>,
+    ignore_blurry_plate: Option<BlurryPlateRule>,
+    only_plate_types: Option<PlateColorRule>,
+    non_motor_plate_types: Vec<PlateColorRule>,
+    plate_special_text: Option<SpecialTextRule>,
+    short_plate: Option<HashSet<String>>,
+    ignore_same_plate: Option<SamePlateRule>,
+}
+
+#[derive(Debug)]
+struct BlurryPlateRule {
+    event_types: HashSet<String>,
+    blurry_level: f64,
+}
+
+#[derive(Debug)]
+struct PlateColorRule {
+    event_types: HashSet<String>,
+    plate_colors: u64,
+}
+
+#[derive(Debug)]
+struct SpecialTextRule {
+    event_types: HashSet<String>,
+    matcher: AhoCorasick,
+}
+
+#[derive(Debug)]
+struct SamePlateRule {
+    event_types: HashSet<String>,
+    cooling_seconds: u64,
+}
+
+impl PlateRules {
+    /// Compiles the raw `plate` config json.
+    pub fn compile(config: &Value) -> Self {
+        let mut compiled = PlateRules::default();
+
+        compiled.only_yellow_plate = config
+            .get("onlyYellowPlate")
+            .filter(|c| rules::is_enabled(c))
+            .and_then(|c| rules::string_set(c, "eventTypes"));
+
+        compiled.ignore_no_plate = config
+            .get("ignoreNoPlateEvents")
+            .filter(|c| rules::is_enabled(c))
+            .and_then(|c| rules::string_set(c, "eventTypes"));
+
+        compiled.ignore_blurry_plate = config
+            .get("ignoreBlurryPlateEvents")
+            .filter(|c| rules::is_enabled(c))
+            .and_then(|c| {
+                let blurry_level = c.get("blurryLevel").and_then(|v| v.as_f64())?;
+                if blurry_level <= 0.0 {
+                    return None;
+                }
+                Some(BlurryPlateRule {
+                    event_types: rules::string_set(c, "eventTypes")?,
+                    blurry_level,
+                })
+            });
+
+        if let Some(c) = config
+            .get("onlyPlateTypes")
+            .filter(|c| rules::is_enabled(c))
+        {
+            if let (Some(plate_colors), Some(event_types)) = (
+                compiled.palette.mask_of(c, "plateColor"),
+                rules::string_set(c, "eventTypes"),
+            ) {
+                compiled.only_plate_types = Some(PlateColorRule { event_types, plate_colors });
+            }
+        }
+
+        if let Some(filters) = config
+            .get("nonMotorPlateTypesFilter")
+            .and_then(|v| v.as_array())
+        {
+            for c in filters {
+                if let (Some(plate_colors), Some(event_types)) = (
+                    compiled.palette.mask_of(c, "plateColor"),
+                    rules::string_set(c, "eventTypes"),
+                ) {
+                    compiled
+                        .non_motor_plate_types
+                        .push(PlateColorRule { event_types, plate_colors });
+                }
+            }
+        }
+
+        compiled.plate_special_text = config.get("plateSpecialTextFilter").and_then(|c| {
+            let special_texts = c.get("specialTexts").and_then(|v| v.as_array())?;
+            let event_types = rules::string_set(c, "eventTypes")?;
+            let patterns: Vec<&str> = special_texts.iter().filter_map(|v| v.as_str()).collect();
+            if patterns.is_empty() {
+                return None;
+            }
+            match AhoCorasick::new(&patterns) {
+                Ok(matcher) => Some(SpecialTextRule { event_types, matcher }),
+                Err(err) => {
+                    tracing::warn!("invalid plateSpecialTextFilter specialTexts: {}", err);
+                    None
+                }
+            }
+        });
+
+        compiled.short_plate = config
+            .get("shortPlateFilter")
+            .filter(|c| rules::is_enabled(c))
+            .and_then(|c| rules::string_set(c, "eventTypes"));
+
+        compiled.ignore_same_plate = config
+            .get("ignoreSamePlateEvents")
+            .filter(|c| rules::is_enabled(c))
+            .and_then(|c| {
+                let cooling_seconds = c.get("coolingSeconds").and_then(|v| v.as_u64())?;
+                if cooling_seconds == 0 {
+                    return None;
+                }
+                Some(SamePlateRule {
+                    event_types: rules::string_set(c, "eventTypes")?,
+                    cooling_seconds,
+                })
+            });
+
+        let mut event_types = HashSet::new();
+        let rule_sets = [
+            compiled.only_yellow_plate.as_ref(),
+            compiled.ignore_no_plate.as_ref(),
+            compiled.ignore_blurry_plate.as_ref().map(|r| &r.event_types),
+            compiled.only_plate_types.as_ref().map(|r| &r.event_types),
+            compiled.plate_special_text.as_ref().map(|r| &r.event_types),
+            compiled.short_plate.as_ref(),
+            compiled.ignore_same_plate.as_ref().map(|r| &r.event_types),
+        ];
+        for set in rule_sets.into_iter().flatten() {
+            event_types.extend(set.iter().cloned());
+        }
+        for rule in &compiled.non_motor_plate_types {
+            event_types.extend(rule.event_types.iter().cloned());
+        }
+        compiled.event_types = event_types;
+        compiled
+    }
+
+    /// Returns `false` when no rule applies to the event type, so the whole group can be skipped.
+    pub fn applies_to(&self, event_type: &str) -> bool {
+        self.event_types.contains(event_type)
+    }
+}
+
 /// The main filter function for plate-related events.
 /// Returns `(true, reason)` if the event should be filtered.
 pub fn filter(
     vo: &mut BoxReportRequest,
-    plate_json_obj: &Value,
+    rules: &PlateRules,
     redis_conn: &mut impl Commands,
 ) -> (bool, Option<&'static str>) {
-    if !only_yellow_plate(vo, plate_json_obj) {
+    let Some(event_type) = vo.event_type.as_deref() else { return (false, None) };
+    if !rules.applies_to(event_type) {
+        return (false, None);
+    }
+
+    if !only_yellow_plate(vo, event_type, rules) {
         return (true, Some("yellowPlate"));
     }
-    if ignore_no_plate_events(vo, plate_json_obj) {
+    if ignore_no_plate_events(vo, event_type, rules) {
         return (true, Some("noPlate"));
     }
-    if ignore_blurry_plate_events(vo, plate_json_obj) {
+    if ignore_blurry_plate_events(vo, event_type, rules) {
         return (true, Some("blurryPlate"));
     }
-    if only_plate_types(vo, plate_json_obj) {
+    if only_plate_types(vo, event_type, rules) {
         return (true, Some("plateColorFiltered"));
     }
-    if non_motor_plate_types_filter(vo, plate_json_obj) {
+    if non_motor_plate_types_filter(vo, event_type, rules) {
         return (true, Some("plateColorFiltered"));
     }
-    if plate_special_text_filter(vo, plate_json_obj) {
+    if plate_special_text_filter(vo, event_type, rules) {
         return (true, Some("specialPlateFilter"));
     }
-    if short_plate_filter(vo, plate_json_obj) {
+    if short_plate_filter(vo, event_type, rules) {
         return (true, Some("shortPlateFilter"));
     }
-    if ignore_same_plate_events(vo, plate_json_obj, redis_conn) {
+    if ignore_same_plate_events(vo, event_type, rules, redis_conn) {
         return (true, Some("samePlate"));
     }
 
@@ -43,15 +211,10 @@ pub fn filter(
 }
 
 /// Returns `false` to filter (if not a yellow plate).
-fn only_yellow_plate(vo: &BoxReportRequest, config: &Value) -> bool {
-    let Some(config) = config.get("onlyYellowPlate") else { return true };
-    if !config.get("enable").and_then(|v| v.as_bool()).unwrap_or(false) {
-        return true;
-    }
-    let Some(event_types) = config.get("eventTypes").and_then(|v| v.as_array()) else { return true };
-    let Some(event_type) = vo.event_type.as_deref() else { return true };
+fn only_yellow_plate(vo: &BoxReportRequest, event_type: &str, rules: &PlateRules) -> bool {
+    let Some(event_types) = rules.only_yellow_plate.as_ref() else { return true };
 
-    if event_types.iter().any(|v| v.as_str() == Some(event_type)) {
+    if event_types.contains(event_type) {
         let Some(plate_color) = vo.plate_color.as_deref() else { return false };
         return PLATE_COLOR_YELLOW.contains(&plate_color);
     }
@@ -59,112 +222,70 @@ fn only_yellow_plate(vo: &BoxReportRequest, config: &Value) -> bool {
 }
 
 /// Returns `true` to filter.
-fn ignore_no_plate_events(vo: &BoxReportRequest, config: &Value) -> bool {
-    let Some(config) = config.get("ignoreNoPlateEvents") else { return false };
-    if !config.get("enable").and_then(|v| v.as_bool()).unwrap_or(false) {
-        return false;
-    }
-    let Some(event_types) = config.get("eventTypes").and_then(|v| v.as_array()) else { return false };
-    let Some(event_type) = vo.event_type.as_deref() else { return false };
+fn ignore_no_plate_events(vo: &BoxReportRequest, event_type: &str, rules: &PlateRules) -> bool {
+    let Some(event_types) = rules.ignore_no_plate.as_ref() else { return false };
 
-    if event_types.iter().any(|v| v.as_str() == Some(event_type)) {
+    if event_types.contains(event_type) {
         return vo.plate_number.as_deref().map_or(true, |s| s.is_empty());
     }
     false
 }
 
 /// Returns `true` to filter.
-fn ignore_blurry_plate_events(vo: &BoxReportRequest, config: &Value) -> bool {
-    let Some(config) = config.get("ignoreBlurryPlateEvents") else { return false };
-    if !config.get("enable").and_then(|v| v.as_bool()).unwrap_or(false) {
+fn ignore_blurry_plate_events(vo: &BoxReportRequest, event_type: &str, rules: &PlateRules) -> bool {
+    let Some(rule) = rules.ignore_blurry_plate.as_ref() else { return false };
+    if !rule.event_types.contains(event_type) {
         return false;
     }
-    let Some(blurry_level) = config.get("blurryLevel").and_then(|v| v.as_f64()) else { return false };
-    if blurry_level <= 0.0 { return false; }
-    
-    let Some(extra_data) = vo.extra_data.as_ref() else { return false };
-    let Some(score) = extra_data.get("plateNumberScore").and_then(|v| v.as_f64()) else { return false };
-    let Some(event_type) = vo.event_type.as_deref() else { return false };
-    let Some(event_types) = config.get("eventTypes").and_then(|v| v.as_array()) else { return false };
 
-    if event_types.iter().any(|v| v.as_str() == Some(event_type)) {
-        return score < blurry_level;
-    }
-    false
+    let Some(score) = vo.extra_slots.plate_number_score else { return false };
+    score < rule.blurry_level
 }
 
 /// Returns `true` to filter.
-fn only_plate_types(vo: &BoxReportRequest, config: &Value) -> bool {
-    let Some(config) = config.get("onlyPlateTypes") else { return false };
-    if !config.get("enable").and_then(|v| v.as_bool()).unwrap_or(false) {
-        return false;
-    }
-    let Some(plate_colors) = config.get("plateColor").and_then(|v| v.as_array()) else { return false };
-    let Some(event_types) = config.get("eventTypes").and_then(|v| v.as_array()) else { return false };
-
+fn only_plate_types(vo: &BoxReportRequest, event_type: &str, rules: &PlateRules) -> bool {
+    let Some(rule) = rules.only_plate_types.as_ref() else { return false };
     let Some(plate_color) = vo.plate_color.as_deref() else { return false };
-    let Some(event_type) = vo.event_type.as_deref() else { return false };
 
-    if event_types.iter().any(|v| v.as_str() == Some(event_type)) {
-        return !plate_colors.iter().any(|v| v.as_str() == Some(plate_color));
+    if rule.event_types.contains(event_type) {
+        return rule.plate_colors & rules.palette.bit(plate_color) == 0;
     }
     false
 }
 
 /// Returns `true` to filter.
-fn non_motor_plate_types_filter(vo: &BoxReportRequest, config: &Value) -> bool {
-    let Some(filters) = config.get("nonMotorPlateTypesFilter").and_then(|v| v.as_array()) else { return false };
-    let Some(extra_data) = vo.extra_data.as_ref() else { return false };
-    let plate_color = extra_data.get("summary")
-        .and_then(|s| s.get("plate/type"))
-        .and_then(|pt| pt.get("label"))
-        .and_then(|l| l.as_str())
-        .unwrap_or("nullValue");
-
-    let Some(event_type) = vo.event_type.as_deref() else { return false };
-
-    for filter in filters {
-        let Some(plate_colors) = filter.get("plateColor").and_then(|v| v.as_array()) else { continue };
-        let Some(event_types) = filter.get("eventTypes").and_then(|v| v.as_array()) else { continue };
-        if event_types.iter().any(|v| v.as_str() == Some(event_type)) {
-            if !plate_colors.iter().any(|v| v.as_str() == Some(plate_color)) {
-                return true;
-            }
-        }
+fn non_motor_plate_types_filter(vo: &BoxReportRequest, event_type: &str, rules: &PlateRules) -> bool {
+    if rules.non_motor_plate_types.is_empty() {
+        return false;
     }
-    false
+    if vo.extra_data.is_none() {
+        return false;
+    }
+    let plate_color = vo.extra_slots.plate_type_label.as_deref().unwrap_or("nullValue");
+    let color_bit = rules.palette.bit(plate_color);
+
+    rules
+        .non_motor_plate_types
+        .iter()
+        .any(|rule| rule.event_types.contains(event_type) && rule.plate_colors & color_bit == 0)
 }
 
 /// Returns `true` to filter.
-fn plate_special_text_filter(vo: &BoxReportRequest, config: &Value) -> bool {
-    let Some(config) = config.get("plateSpecialTextFilter") else { return false };
-    let Some(special_texts) = config.get("specialTexts").and_then(|v| v.as_array()) else { return false };
+fn plate_special_text_filter(vo: &BoxReportRequest, event_type: &str, rules: &PlateRules) -> bool {
+    let Some(rule) = rules.plate_special_text.as_ref() else { return false };
     let Some(plate_number) = vo.plate_number.as_deref() else { return false };
-    let Some(event_type) = vo.event_type.as_deref() else { return false };
-    let Some(event_types) = config.get("eventTypes").and_then(|v| v.as_array()) else { return false };
-
-    if event_types.iter().any(|v| v.as_str() == Some(event_type)) {
-        for text in special_texts {
-            if let Some(text_str) = text.as_str() {
-                if plate_number.contains(text_str) {
-                    return true;
-                }
-            }
-        }
+
+    if rule.event_types.contains(event_type) {
+        return rule.matcher.is_match(plate_number);
     }
     false
 }
 
 /// Returns `true` to filter.
-fn short_plate_filter(vo: &BoxReportRequest, config: &Value) -> bool {
-    let Some(config) = config.get("shortPlateFilter") else { return false };
-    if !config.get("enable").and_then(|v| v.as_bool()).unwrap_or(false) {
-        return false;
-    }
-    let Some(event_types) = config.get("eventTypes").and_then(|v| v.as_array()) else { return false };
-    let Some(event_type) = vo.event_type.as_deref() else { return false };
+fn short_plate_filter(vo: &BoxReportRequest, event_type: &str, rules: &PlateRules) -> bool {
+    let Some(event_types) = rules.short_plate.as_ref() else { return false };
 
-    if event_types.iter().any(|v| v.as_str() == Some(event_type)) {
+    if event_types.contains(event_type) {
         return vo.plate_number.as_deref().map_or(false, |p| p.len() < 7);
     }
     false
@@ -173,23 +294,16 @@ fn short_plate_filter(vo: &BoxReportRequest, config: &Value) -> bool {
 /// Returns `true` to filter.
 fn ignore_same_plate_events(
     vo: &BoxReportRequest,
-    config: &Value,
+    event_type: &str,
+    rules: &PlateRules,
     redis_conn: &mut impl Commands,
 ) -> bool {
     let Some(plate_number) = vo.plate_number.as_deref() else { return false };
-    let Some(config) = config.get("ignoreSamePlateEvents") else { return false };
-    if !config.get("enable").and_then(|v| v.as_bool()).unwrap_or(false) {
+    let Some(rule) = rules.ignore_same_plate.as_ref() else { return false };
+    if !rule.event_types.contains(event_type) {
         return false;
     }
-    let Some(cooling_seconds) = config.get("coolingSeconds").and_then(|v| v.as_u64()) else { return false };
-    if cooling_seconds == 0 { return false; }
-    
-    let Some(event_types) = config.get("eventTypes").and_then(|v| v.as_array()) else { return false };
-    let Some(event_type) = vo.event_type.as_deref() else { return false };
-    if !event_types.iter().any(|v| v.as_str() == Some(event_type)) {
-        return false;
-    }
-    
+
     // In the java code, projectId is used, but the DTO doesn't have it directly at this stage.
     // It's added later from the task. We'll assume task_code is unique enough for the key for now.
     let key = format!("PLATE_KEY:{}:{}:{}", vo.task_code.as_deref().unwrap_or(""), event_type, plate_number);
@@ -200,6 +314,6 @@ fn ignore_same_plate_events(
         }
     }
 
-    let _: Result<(), _> = redis_conn.set_ex(key, plate_number, cooling_seconds);
+    let _: Result<(), _> = redis_conn.set_ex(key, plate_number, rule.cooling_seconds);
     false
 }
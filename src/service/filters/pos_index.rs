@@ -0,0 +1,178 @@
+//! Recent boxes per task and event type for the same-position filter.
+//!
+//! Each key keeps a ring of its last `ring_size` boxes, every box with its own
+//! expiry, so several stationary objects in one frame are all deduplicated
+//! instead of the stored box flipping between them. A new box is compared
+//! against every live box of the ring; it is filtered when one overlaps more
+//! than the threshold, and appended otherwise.
+//!
+//! Rings are shared through a Redis script, or kept in memory when boxes are
+//! pinned to this node. In memory, each shard drops the rings whose boxes all
+//! expired once per `SWEEP_INTERVAL_MS`, during a check that locks it anyway.
+
+use std::collections::HashMap;
+use std::hash::{BuildHasher, RandomState};
+use std::sync::Mutex;
+
+use once_cell::sync::Lazy;
+use redis::{Commands, Script};
+
+/// Upper bound of the ring size a rule can configure.
+pub const MAX_RING: usize = 16;
+const SHARDS: usize = 32;
+const SWEEP_INTERVAL_MS: i64 = 60_000;
+
+static LOCAL_INDEX: Lazy<LocalPosIndex> = Lazy::new(LocalPosIndex::new);
+
+/// Ring stored as 40-byte records, four little-endian doubles `x1 y1 x2 y2`
+/// followed by the expiry in epoch millis. Returns 1 to filter.
+static RING_SCRIPT: Lazy<Script> = Lazy::new(|| {
+    Script::new(
+        r#"
+local threshold = tonumber(ARGV[2])
+local ttl_ms = tonumber(ARGV[3]) * 1000
+local now_ms = tonumber(ARGV[4])
+local ring_size = tonumber(ARGV[5])
+local x1, y1, x2, y2 = struct.unpack('<dddd', ARGV[1])
+local area = (x2 - x1) * (y2 - y1)
+local old = redis.call('GET', KEYS[1]) or ''
+local kept = {}
+for offset = 1, #old - 39, 40 do
+    local bx1, by1, bx2, by2, expires_at = struct.unpack('<ddddd', old, offset)
+    if expires_at > now_ms then
+        local inner_w = math.max(math.min(x2, bx2) - math.max(x1, bx1), 0)
+        local inner_h = math.max(math.min(y2, by2) - math.max(y1, by1), 0)
+        local inner_area = inner_w * inner_h
+        local union_area = area + (bx2 - bx1) * (by2 - by1) - inner_area
+        if union_area ~= 0 and inner_area / union_area > threshold then
+            return 1
+        end
+        kept[#kept + 1] = string.sub(old, offset, offset + 39)
+    end
+end
+kept[#kept + 1] = ARGV[1] .. struct.pack('<d', now_ms + ttl_ms)
+local first = math.max(1, #kept - ring_size + 1)
+redis.call('SET', KEYS[1], table.concat(kept, '', first), 'PX', ttl_ms)
+return 0
+"#,
+    )
+});
+
+/// Filter parameters of one check.
+#[derive(Debug)]
+pub struct SamePosCheck {
+    pub overlap_percent: f64,
+    pub cooling_seconds: u64,
+    pub ring_size: usize,
+}
+
+/// Returns `true` when the box overlaps a recent box of the key, otherwise remembers it.
+pub fn check_and_insert(
+    key: &str,
+    target_box: &[f64; 4],
+    check: &SamePosCheck,
+    node_affinity: bool,
+    now_ms: i64,
+    redis_conn: &mut impl Commands,
+) -> bool {
+    if node_affinity {
+        return LOCAL_INDEX.check_and_insert(key, target_box, check, now_ms);
+    }
+
+    let packed: Vec<u8> = target_box.iter().flat_map(|v| v.to_le_bytes()).collect();
+    RING_SCRIPT
+        .key(key)
+        .arg(packed)
+        .arg(check.overlap_percent)
+        .arg(check.cooling_seconds.max(1))
+        .arg(now_ms)
+        .arg(check.ring_size)
+        .invoke::<i64>(redis_conn)
+        .map(|filtered| filtered == 1)
+        .unwrap_or_else(|err| {
+            tracing::warn!("same position check failed, key: {}, err: {}", key, err);
+            false
+        })
+}
+
+struct LocalPosIndex {
+    hasher: RandomState,
+    shards: Vec<Mutex<PosShard>>,
+}
+
+#[derive(Default)]
+struct PosShard {
+    rings: HashMap<String, PosRing>,
+    swept_at_ms: i64,
+}
+
+impl LocalPosIndex {
+    fn new() -> Self {
+        Self {
+            hasher: RandomState::new(),
+            shards: (0..SHARDS).map(|_| Mutex::new(PosShard::default())).collect(),
+        }
+    }
+
+    fn check_and_insert(&self, key: &str, target_box: &[f64; 4], check: &SamePosCheck, now_ms: i64) -> bool {
+        let mut shard = self.shards[self.hasher.hash_one(key) as usize % SHARDS].lock().unwrap();
+        if now_ms - shard.swept_at_ms >= SWEEP_INTERVAL_MS {
+            shard.rings.retain(|_, ring| ring.is_live(now_ms));
+            shard.swept_at_ms = now_ms;
+        }
+        if !shard.rings.contains_key(key) {
+            shard.rings.insert(key.to_string(), PosRing::default());
+        }
+        let ring = shard.rings.get_mut(key).unwrap();
+        if ring.overlaps(target_box, check.overlap_percent, now_ms) {
+            return true;
+        }
+        let expires_at_ms = now_ms + check.cooling_seconds.max(1) as i64 * 1000;
+        ring.push(target_box, expires_at_ms, check.ring_size);
+        false
+    }
+}
+
+/// Boxes of one key in structure-of-arrays form. The scan runs over all lanes
+/// with the same straight-line arithmetic, empty and expired lanes included,
+/// so the compiler can vectorise it.
+#[derive(Default)]
+struct PosRing {
+    x1: [f64; MAX_RING],
+    y1: [f64; MAX_RING],
+    x2: [f64; MAX_RING],
+    y2: [f64; MAX_RING],
+    /// Epoch millis; `0` marks an empty lane.
+    expires_at_ms: [i64; MAX_RING],
+    next: usize,
+}
+
+impl PosRing {
+    fn overlaps(&self, target_box: &[f64; 4], threshold: f64, now_ms: i64) -> bool {
+        let [x1, y1, x2, y2] = *target_box;
+        let area = (x2 - x1) * (y2 - y1);
+        let mut rates = [0.0f64; MAX_RING];
+        for i in 0..MAX_RING {
+            let inner_w = (x2.min(self.x2[i]) - x1.max(self.x1[i])).max(0.0);
+            let inner_h = (y2.min(self.y2[i]) - y1.max(self.y1[i])).max(0.0);
+            let inner_area = inner_w * inner_h;
+            let union_area = area + (self.x2[i] - self.x1[i]) * (self.y2[i] - self.y1[i]) - inner_area;
+            let live = self.expires_at_ms[i] > now_ms && union_area != 0.0;
+            rates[i] = if live { inner_area / union_area } else { 0.0 };
+        }
+        rates.iter().any(|rate| *rate > threshold)
+    }
+
+    /// Whether any box of the ring has not expired yet.
+    fn is_live(&self, now_ms: i64) -> bool {
+        self.expires_at_ms.iter().any(|t| *t > now_ms)
+    }
+
+    fn push(&mut self, target_box: &[f64; 4], expires_at_ms: i64, ring_size: usize) {
+        let ring_size = ring_size.clamp(1, MAX_RING);
+        let i = self.next % ring_size;
+        [self.x1[i], self.y1[i], self.x2[i], self.y2[i]] = *target_box;
+        self.expires_at_ms[i] = expires_at_ms;
+        self.next = (i + 1) % ring_size;
+    }
+}
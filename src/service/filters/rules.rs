@@ -0,0 +1,68 @@
+//! Shared building blocks for compiled filter rules.
+//!
+//! Filter configs are stored as free-form JSON. They are compiled once per
+//! project and config version into the typed rules of `plate_filter` and
+//! `other_filter`, so that the per-event path only does hash lookups.
+
+use std::collections::{HashMap, HashSet};
+
+use serde_json::Value;
+
+/// Reads the `enable` flag of a rule config, defaulting to `false`.
+pub fn is_enabled(config: &Value) -> bool {
+    config.get("enable").and_then(|v| v.as_bool()).unwrap_or(false)
+}
+
+/// Collects the string entries of `config[key]` into a set.
+/// Returns `None` when the key is missing or not an array.
+pub fn string_set(config: &Value, key: &str) -> Option<HashSet<String>> {
+    let values = config.get(key).and_then(|v| v.as_array())?;
+    Some(
+        values
+            .iter()
+            .filter_map(|v| v.as_str())
+            .map(String::from)
+            .collect(),
+    )
+}
+
+/// Interns the plate colours referenced by a config, so that colour sets can be
+/// stored as bit masks and the colour of an event is resolved once per filter call.
+#[derive(Debug, Default, Clone)]
+pub struct ColorPalette {
+    bits: HashMap<String, u64>,
+}
+
+impl ColorPalette {
+    const MAX_COLORS: usize = 64;
+
+    /// Builds the bit mask for the string entries of `config[key]`.
+    /// Returns `None` when the key is missing or not an array.
+    pub fn mask_of(&mut self, config: &Value, key: &str) -> Option<u64> {
+        let values = config.get(key).and_then(|v| v.as_array())?;
+        Some(
+            values
+                .iter()
+                .filter_map(|v| v.as_str())
+                .fold(0, |mask, color| mask | self.intern(color)),
+        )
+    }
+
+    /// Returns the bit of a colour, or `0` if the colour is not referenced by any rule.
+    pub fn bit(&self, color: &str) -> u64 {
+        self.bits.get(color).copied().unwrap_or(0)
+    }
+
+    fn intern(&mut self, color: &str) -> u64 {
+        if let Some(bit) = self.bits.get(color) {
+            return *bit;
+        }
+        if self.bits.len() >= Self::MAX_COLORS {
+            tracing::warn!("plate colour palette is full, ignoring colour: {}", color);
+            return 0;
+        }
+        let bit = 1u64 << self.bits.len();
+        self.bits.insert(color.to_string(), bit);
+        bit
+    }
+}
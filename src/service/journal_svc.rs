@@ -0,0 +1,411 @@
+//! Node-local write-ahead journal of accepted box reports.
+//!
+//! Records are appended to fixed-size, memory-mapped segment files, so an
+//! append is a copy into the page cache and survives a process crash (and with
+//! `sync` also a power loss). Processed records are acknowledged with a small
+//! ack record; on startup every data record without an ack is handed back for
+//! replay. Segments are deleted oldest first, once all their data records are
+//! acknowledged. Records that can never be processed are parked as json lines
+//! in `parked.jsonl` next to the segments and acknowledged.
+//!
+//! Record layout: `len u32 | crc32 u32 | kind u8 | seq u64 | payload`, little
+//! endian, `len` and `crc32` covering everything after the header. Segment files
+//! are zero-filled, so a zero length marks the end of the written part.
+
+use std::collections::{BTreeMap, HashMap};
+use std::fs::{self, OpenOptions};
+use std::io::Write;
+use std::path::{Path, PathBuf};
+use std::sync::Mutex;
+
+use anyhow::{Result, bail};
+use memmap2::MmapMut;
+
+const HEADER_BYTES: usize = 8;
+const KIND_DATA: u8 = 1;
+const KIND_ACK: u8 = 2;
+const SEGMENT_SUFFIX: &str = ".journal";
+const PARKED_FILE: &str = "parked.jsonl";
+
+pub struct Journal {
+    dir: PathBuf,
+    segment_bytes: usize,
+    sync: bool,
+    state: Mutex<JournalState>,
+}
+
+/// A data record that was never acknowledged.
+pub struct PendingRecord {
+    pub seq: u64,
+    pub data: Vec<u8>,
+}
+
+struct JournalState {
+    next_seq: u64,
+    next_segment: u64,
+    active: ActiveSegment,
+    /// Unacknowledged data records per segment number, oldest segment first.
+    pending: BTreeMap<u64, usize>,
+    /// Segment holding each unacknowledged data record.
+    seq_segments: HashMap<u64, u64>,
+}
+
+struct ActiveSegment {
+    number: u64,
+    mmap: MmapMut,
+    offset: usize,
+}
+
+impl Journal {
+    /// Opens the journal in `dir` and returns the records to replay, in append order.
+    /// Appends always go to a new segment; older segments are only read.
+    pub fn open(dir: impl AsRef<Path>, segment_bytes: usize, sync: bool) -> Result<(Self, Vec<PendingRecord>)> {
+        let dir = dir.as_ref().to_path_buf();
+        fs::create_dir_all(&dir)?;
+
+        let numbers = list_segments(&dir)?;
+        let mut unacked: BTreeMap<u64, (u64, Vec<u8>)> = BTreeMap::new();
+        let mut next_seq = 0;
+        for number in &numbers {
+            let bytes = fs::read(segment_path(&dir, *number))?;
+            for (kind, seq, payload) in Records::new(&bytes) {
+                next_seq = next_seq.max(seq + 1);
+                match kind {
+                    KIND_DATA => {
+                        unacked.insert(seq, (*number, payload.to_vec()));
+                    }
+                    KIND_ACK => {
+                        unacked.remove(&seq);
+                    }
+                    _ => {}
+                }
+            }
+        }
+
+        let mut pending: BTreeMap<u64, usize> = numbers.iter().map(|n| (*n, 0)).collect();
+        let mut seq_segments = HashMap::with_capacity(unacked.len());
+        for (seq, (number, _)) in &unacked {
+            *pending.entry(*number).or_default() += 1;
+            seq_segments.insert(*seq, *number);
+        }
+
+        let active_number = numbers.last().map_or(0, |n| n + 1);
+        pending.insert(active_number, 0);
+        let mut state = JournalState {
+            next_seq,
+            next_segment: active_number + 1,
+            active: create_segment(&dir, active_number, segment_bytes)?,
+            pending,
+            seq_segments,
+        };
+        state.compact(&dir);
+
+        let records = unacked
+            .into_iter()
+            .map(|(seq, (_, data))| PendingRecord { seq, data })
+            .collect::<Vec<_>>();
+        if !records.is_empty() {
+            tracing::info!("journal: {} unacknowledged records to replay from {}", records.len(), dir.display());
+        }
+        Ok((Self { dir, segment_bytes, sync, state: Mutex::new(state) }, records))
+    }
+
+    /// Appends a data record and returns its sequence number.
+    pub fn append(&self, data: &[u8]) -> Result<u64> {
+        let mut state = self.state.lock().unwrap();
+        let seq = state.next_seq;
+        self.write_record(&mut state, KIND_DATA, seq, data)?;
+        state.next_seq += 1;
+        let number = state.active.number;
+        *state.pending.entry(number).or_default() += 1;
+        state.seq_segments.insert(seq, number);
+        Ok(seq)
+    }
+
+    /// Acknowledges a processed record, so it is not replayed after a restart.
+    pub fn ack(&self, seq: u64) {
+        let mut state = self.state.lock().unwrap();
+        let Some(number) = state.seq_segments.remove(&seq) else { return };
+        if let Err(err) = self.write_record(&mut state, KIND_ACK, seq, &[]) {
+            tracing::warn!("journal: failed to write ack of seq {}: {}", seq, err);
+        }
+        if let Some(count) = state.pending.get_mut(&number) {
+            *count = count.saturating_sub(1);
+        }
+        state.compact(&self.dir);
+    }
+
+    /// Parks a record that can never be processed, then acknowledges it.
+    /// The record stays unacknowledged when it could not be parked.
+    pub fn park(&self, seq: u64, line: &[u8]) -> Result<()> {
+        {
+            // 与追加共用锁, 保证每行完整写入
+            let _state = self.state.lock().unwrap();
+            let mut file = OpenOptions::new()
+                .create(true)
+                .append(true)
+                .open(self.dir.join(PARKED_FILE))?;
+            let mut record = Vec::with_capacity(line.len() + 1);
+            record.extend_from_slice(line);
+            record.push(b'\n');
+            file.write_all(&record)?;
+            if self.sync {
+                file.sync_data()?;
+            }
+        }
+        self.ack(seq);
+        Ok(())
+    }
+
+    fn write_record(&self, state: &mut JournalState, kind: u8, seq: u64, payload: &[u8]) -> Result<()> {
+        let body_len = 1 + 8 + payload.len();
+        let total = HEADER_BYTES + body_len;
+        if total > self.segment_bytes {
+            bail!("journal record of {} bytes exceeds the segment size", total);
+        }
+        if state.active.offset + total > self.segment_bytes {
+            self.rotate(state)?;
+        }
+
+        let start = state.active.offset;
+        let mmap = &mut state.active.mmap;
+        let body = &mut mmap[start + HEADER_BYTES..start + total];
+        body[0] = kind;
+        body[1..9].copy_from_slice(&seq.to_le_bytes());
+        body[9..].copy_from_slice(payload);
+        let crc = crc32fast::hash(body);
+        mmap[start..start + 4].copy_from_slice(&(body_len as u32).to_le_bytes());
+        mmap[start + 4..start + HEADER_BYTES].copy_from_slice(&crc.to_le_bytes());
+        if self.sync {
+            mmap.flush_range(start, total)?;
+        }
+        state.active.offset += total;
+        Ok(())
+    }
+
+    fn rotate(&self, state: &mut JournalState) -> Result<()> {
+        state.active.mmap.flush_async()?;
+        let number = state.next_segment;
+        state.active = create_segment(&self.dir, number, self.segment_bytes)?;
+        state.next_segment += 1;
+        state.pending.insert(number, 0);
+        state.compact(&self.dir);
+        Ok(())
+    }
+}
+
+impl JournalState {
+    /// Deletes the oldest segments while all their data records are acknowledged.
+    /// Acks always live in the same or a newer segment than their data record,
+    /// so deleting oldest first never resurrects an acknowledged record.
+    fn compact(&mut self, dir: &Path) {
+        while let Some((&number, &count)) = self.pending.first_key_value() {
+            if number == self.active.number || count > 0 {
+                break;
+            }
+            if let Err(err) = fs::remove_file(segment_path(dir, number)) {
+                tracing::warn!("journal: failed to delete segment {}: {}", number, err);
+                break;
+            }
+            self.pending.pop_first();
+        }
+    }
+}
+
+fn segment_path(dir: &Path, number: u64) -> PathBuf {
+    dir.join(format!("{:010}{}", number, SEGMENT_SUFFIX))
+}
+
+fn list_segments(dir: &Path) -> Result<Vec<u64>> {
+    let mut numbers = Vec::new();
+    for entry in fs::read_dir(dir)? {
+        let name = entry?.file_name();
+        let Some(number) = name
+            .to_str()
+            .and_then(|n| n.strip_suffix(SEGMENT_SUFFIX))
+            .and_then(|n| n.parse::<u64>().ok())
+        else {
+            continue;
+        };
+        numbers.push(number);
+    }
+    numbers.sort_unstable();
+    Ok(numbers)
+}
+
+fn create_segment(dir: &Path, number: u64, segment_bytes: usize) -> Result<ActiveSegment> {
+    let file = OpenOptions::new()
+        .read(true)
+        .write(true)
+        .create(true)
+        .truncate(true)
+        .open(segment_path(dir, number))?;
+    file.set_len(segment_bytes as u64)?;
+    // SAFETY: the segment file is created here and only ever written through this mapping.
+    let mmap = unsafe { MmapMut::map_mut(&file)? };
+    Ok(ActiveSegment { number, mmap, offset: 0 })
+}
+
+/// Iterates the intact records of a segment, stopping at the end marker or at
+/// the first torn record.
+struct Records<'a> {
+    bytes: &'a [u8],
+    offset: usize,
+}
+
+impl<'a> Records<'a> {
+    fn new(bytes: &'a [u8]) -> Self {
+        Self { bytes, offset: 0 }
+    }
+}
+
+impl<'a> Iterator for Records<'a> {
+    type Item = (u8, u64, &'a [u8]);
+
+    fn next(&mut self) -> Option<Self::Item> {
+        let header = self.bytes.get(self.offset..self.offset + HEADER_BYTES)?;
+        let body_len = u32::from_le_bytes(header[0..4].try_into().ok()?) as usize;
+        let crc = u32::from_le_bytes(header[4..8].try_into().ok()?);
+        if body_len < 9 {
+            return None;
+        }
+        let start = self.offset + HEADER_BYTES;
+        let body = self.bytes.get(start..start + body_len)?;
+        if crc32fast::hash(body) != crc {
+            return None;
+        }
+        self.offset = start + body_len;
+        let seq = u64::from_le_bytes(body[1..9].try_into().ok()?);
+        Some((body[0], seq, &body[9..]))
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use super::*;
+
+    const SEGMENT_BYTES: usize = 4096;
+
+    /// A fresh directory under the system temp dir, removed when dropped.
+    struct TempDir(PathBuf);
+
+    impl TempDir {
+        fn new(name: &str) -> Self {
+            let nanos = std::time::SystemTime::now()
+                .duration_since(std::time::UNIX_EPOCH)
+                .unwrap()
+                .as_nanos();
+            let dir = std::env::temp_dir().join(format!("journal_svc_{}_{}_{}", name, std::process::id(), nanos));
+            let _ = fs::remove_dir_all(&dir);
+            Self(dir)
+        }
+    }
+
+    impl Drop for TempDir {
+        fn drop(&mut self) {
+            let _ = fs::remove_dir_all(&self.0);
+        }
+    }
+
+    fn pending(records: &[PendingRecord]) -> Vec<(u64, &[u8])> {
+        records.iter().map(|r| (r.seq, r.data.as_slice())).collect()
+    }
+
+    #[test]
+    fn replays_unacknowledged_records_in_order() {
+        let dir = TempDir::new("round_trip");
+        let (journal, records) = Journal::open(&dir.0, SEGMENT_BYTES, false).unwrap();
+        assert!(records.is_empty());
+        assert_eq!(journal.append(b"first").unwrap(), 0);
+        assert_eq!(journal.append(b"second").unwrap(), 1);
+        assert_eq!(journal.append(b"third").unwrap(), 2);
+        journal.ack(1);
+        drop(journal);
+
+        let (journal, records) = Journal::open(&dir.0, SEGMENT_BYTES, false).unwrap();
+        assert_eq!(pending(&records), vec![(0, &b"first"[..]), (2, &b"third"[..])]);
+        assert_eq!(journal.append(b"fourth").unwrap(), 3);
+        journal.ack(0);
+        journal.ack(2);
+        drop(journal);
+
+        let (_, records) = Journal::open(&dir.0, SEGMENT_BYTES, false).unwrap();
+        assert_eq!(pending(&records), vec![(3, &b"fourth"[..])]);
+    }
+
+    /// Appends two records to a fresh journal, lets `damage` edit the segment
+    /// file, and returns what a reopen replays.
+    fn reopen_after(name: &str, damage: impl FnOnce(&Path, usize)) -> Vec<(u64, Vec<u8>)> {
+        let dir = TempDir::new(name);
+        let (journal, _) = Journal::open(&dir.0, SEGMENT_BYTES, false).unwrap();
+        journal.append(b"first").unwrap();
+        journal.append(b"second").unwrap();
+        drop(journal);
+
+        let second_at = HEADER_BYTES + 9 + b"first".len();
+        damage(&segment_path(&dir.0, 0), second_at);
+        let (journal, records) = Journal::open(&dir.0, SEGMENT_BYTES, false).unwrap();
+        // 损坏的记录之后序号照常递增
+        assert_eq!(journal.append(b"third").unwrap(), 1);
+        records.into_iter().map(|r| (r.seq, r.data)).collect()
+    }
+
+    #[test]
+    fn stops_at_a_truncated_last_record() {
+        let records = reopen_after("truncated", |path, second_at| {
+            let file = OpenOptions::new().write(true).open(path).unwrap();
+            file.set_len((second_at + HEADER_BYTES + 4) as u64).unwrap();
+        });
+        assert_eq!(records, vec![(0, b"first".to_vec())]);
+    }
+
+    #[test]
+    fn stops_at_a_crc_mismatch() {
+        let records = reopen_after("corrupted", |path, second_at| {
+            let mut bytes = fs::read(path).unwrap();
+            bytes[second_at + HEADER_BYTES + 9] ^= 0xff;
+            fs::write(path, bytes).unwrap();
+        });
+        assert_eq!(records, vec![(0, b"first".to_vec())]);
+    }
+
+    #[test]
+    fn compacts_acknowledged_segments_oldest_first() {
+        let dir = TempDir::new("compaction");
+        // 10 字节的数据记录占 27 字节, 每个段放两条
+        let (journal, _) = Journal::open(&dir.0, 64, false).unwrap();
+        for i in 0..6u8 {
+            journal.append(&[i; 10]).unwrap();
+        }
+        assert_eq!(list_segments(&dir.0).unwrap(), vec![0, 1, 2]);
+
+        journal.ack(0);
+        journal.ack(1);
+        assert_eq!(list_segments(&dir.0).unwrap(), vec![1, 2, 3]);
+
+        // 段 1 还有未确认的记录, 后面的段不能先删
+        journal.ack(3);
+        journal.ack(4);
+        journal.ack(5);
+        assert_eq!(list_segments(&dir.0).unwrap()[0], 1);
+        drop(journal);
+
+        let (journal, records) = Journal::open(&dir.0, 64, false).unwrap();
+        assert_eq!(pending(&records), vec![(2, &[2u8; 10][..])]);
+        journal.ack(2);
+        assert_eq!(list_segments(&dir.0).unwrap().len(), 1);
+    }
+
+    #[test]
+    fn parked_records_are_written_out_and_not_replayed() {
+        let dir = TempDir::new("parked");
+        let (journal, _) = Journal::open(&dir.0, SEGMENT_BYTES, false).unwrap();
+        let seq = journal.append(b"bad row").unwrap();
+        journal.park(seq, br#"{"id":1}"#).unwrap();
+        drop(journal);
+
+        assert_eq!(fs::read_to_string(dir.0.join(PARKED_FILE)).unwrap(), "{\"id\":1}\n");
+        let (_, records) = Journal::open(&dir.0, SEGMENT_BYTES, false).unwrap();
+        assert!(records.is_empty());
+    }
+}
@@ -0,0 +1,180 @@
+//! Prometheus metrics of the report path, served on `/metrics`.
+//!
+//! - `event_stage_seconds`: time per processing stage of a report, labelled by
+//!   project, event type, source box and outcome.
+//! - `event_filtered_total`: filter decisions per filtered type.
+//! - `queue_wait_seconds`: time work waited before it was picked up, per queue.
+//! - `mq_delivery_seconds`: time until a Kafka message was delivered, per path.
+//! - `mq_dropped_total`: Kafka messages dropped because a queue was full.
+//!
+//! The outcome of a report is only known once it was decided, so `StageTimer`
+//! keeps the laps of a report and records them together at the end.
+
+use std::time::{Duration, Instant};
+
+use once_cell::sync::Lazy;
+use prometheus::{
+    CounterVec, HistogramVec, exponential_buckets, register_counter_vec, register_histogram_vec,
+};
+
+use crate::ctl::bs_model::BoxReportRequest;
+
+/// 0.5ms to about 16s.
+fn latency_buckets() -> Vec<f64> {
+    exponential_buckets(0.0005, 2.0, 16).unwrap()
+}
+
+static EVENT_STAGE_SECONDS: Lazy<HistogramVec> = Lazy::new(|| {
+    register_histogram_vec!(
+        "event_stage_seconds",
+        "Time spent per processing stage of a box report",
+        &["stage", "project", "event_type", "source", "outcome"],
+        latency_buckets()
+    )
+    .unwrap()
+});
+
+static EVENT_FILTERED_TOTAL: Lazy<CounterVec> = Lazy::new(|| {
+    register_counter_vec!(
+        "event_filtered_total",
+        "Reports dropped by a filter, per filtered type",
+        &["project", "event_type", "filtered_type"]
+    )
+    .unwrap()
+});
+
+static QUEUE_WAIT_SECONDS: Lazy<HistogramVec> = Lazy::new(|| {
+    register_histogram_vec!(
+        "queue_wait_seconds",
+        "Time work waited in a queue or for a permit before it started",
+        &["queue"],
+        latency_buckets()
+    )
+    .unwrap()
+});
+
+static MQ_DELIVERY_SECONDS: Lazy<HistogramVec> = Lazy::new(|| {
+    register_histogram_vec!(
+        "mq_delivery_seconds",
+        "Time from queueing a Kafka message to its delivery",
+        &["topic", "path", "result"],
+        latency_buckets()
+    )
+    .unwrap()
+});
+
+static MQ_DROPPED_TOTAL: Lazy<CounterVec> = Lazy::new(|| {
+    register_counter_vec!(
+        "mq_dropped_total",
+        "Kafka messages dropped because their queue was full, per path",
+        &["topic", "path"]
+    )
+    .unwrap()
+});
+
+/// How a report ended.
+#[derive(Debug, Clone, Copy, PartialEq)]
+pub enum Outcome {
+    /// Dropped by the frame-capture cooldown.
+    Cooling,
+    /// Dropped by a filter rule, stored as `filtered`.
+    Filtered,
+    /// Stored as `unknown`.
+    Unknown,
+    /// Stored for manual review and pushed to DQ.
+    Dq,
+    /// Stored as a direct event.
+    Event,
+    /// Not stored, e.g. no algorithm for the event type.
+    Skipped,
+    /// Decided, but the event could not be stored.
+    Failed,
+}
+
+impl Outcome {
+    pub fn as_str(self) -> &'static str {
+        match self {
+            Outcome::Cooling => "cooling",
+            Outcome::Filtered => "filtered",
+            Outcome::Unknown => "unknown",
+            Outcome::Dq => "dq",
+            Outcome::Event => "event",
+            Outcome::Skipped => "skipped",
+            Outcome::Failed => "failed",
+        }
+    }
+
+    /// Outcome of a stored event, from its `marking`.
+    pub fn of_marking(marking: Option<&str>) -> Self {
+        match marking {
+            Some("filtered") => Outcome::Filtered,
+            Some("unknown") => Outcome::Unknown,
+            Some("init") => Outcome::Dq,
+            _ => Outcome::Event,
+        }
+    }
+}
+
+/// Laps of one report, recorded when its outcome is known.
+pub struct StageTimer {
+    last: Instant,
+    laps: Vec<(&'static str, Duration)>,
+}
+
+impl StageTimer {
+    pub fn start() -> Self {
+        Self { last: Instant::now(), laps: Vec::with_capacity(6) }
+    }
+
+    /// Ends the current stage, which started at the previous lap.
+    pub fn lap(&mut self, stage: &'static str) {
+        let now = Instant::now();
+        self.laps.push((stage, now - self.last));
+        self.last = now;
+    }
+
+    pub fn finish(self, payload: &BoxReportRequest, outcome: Outcome) {
+        for (stage, elapsed) in self.laps {
+            observe_stage(stage, payload, outcome, elapsed);
+        }
+    }
+}
+
+pub fn observe_stage(stage: &str, payload: &BoxReportRequest, outcome: Outcome, elapsed: Duration) {
+    let project = payload.project_id.to_string();
+    EVENT_STAGE_SECONDS
+        .with_label_values(&[
+            stage,
+            &project,
+            payload.event_type.as_deref().unwrap_or(""),
+            payload.source.as_deref().unwrap_or(""),
+            outcome.as_str(),
+        ])
+        .observe(elapsed.as_secs_f64());
+}
+
+pub fn count_filtered(payload: &BoxReportRequest, filtered_type: &str) {
+    let project = payload.project_id.to_string();
+    EVENT_FILTERED_TOTAL
+        .with_label_values(&[&project, payload.event_type.as_deref().unwrap_or(""), filtered_type])
+        .inc();
+}
+
+pub fn observe_queue_wait(queue: &str, waited: Duration) {
+    QUEUE_WAIT_SECONDS.with_label_values(&[queue]).observe(waited.as_secs_f64());
+}
+
+pub fn observe_mq_delivery(topic: &str, path: &str, ok: bool, elapsed: Duration) {
+    MQ_DELIVERY_SECONDS
+        .with_label_values(&[topic, path, if ok { "ok" } else { "error" }])
+        .observe(elapsed.as_secs_f64());
+}
+
+pub fn count_mq_dropped(topic: &str, path: &str) {
+    MQ_DROPPED_TOTAL.with_label_values(&[topic, path]).inc();
+}
+
+/// Renders every registered metric in the Prometheus text format.
+pub fn render() -> anyhow::Result<String> {
+    Ok(prometheus::TextEncoder::new().encode_to_string(&prometheus::gather())?)
+}
@@ -1,8 +1,19 @@
 pub mod algorithm_svc;
 pub mod base_config_svc;
 pub mod camera_svc;
+pub mod cooldown_svc;
+pub mod dedup_svc;
+pub mod downstream_svc;
 pub mod event_filter_config_svc;
+pub mod event_log_svc;
+pub mod event_partition_svc;
 pub mod event_processing_svc;
 pub mod event_svc;
+pub mod event_writer_svc;
 pub mod filters;
+pub mod journal_svc;
+pub mod metrics_svc;
+pub mod mq_svc;
+pub mod near_cache;
+pub mod recent_event_svc;
 pub mod task_svc;
@@ -0,0 +1,535 @@
+//! Producer of the Kafka topics the service writes to.
+//!
+//! With brokers configured, messages are produced directly: each partition has
+//! a batch producer that accumulates records for `linger` and sends them as
+//! one compressed request. Keys are partitioned with murmur2 like the default
+//! Kafka partitioner, so other producers put a key on the same partition.
+//! `send` returns at once. Every topic has one bounded queue, drained in
+//! groups: a group is handed to the batch producers in send order and its
+//! deliveries awaited before the next group, so messages with the same key,
+//! which share a partition, keep their order. A message that cannot be
+//! delivered within `produce_timeout` is queued for the message center HTTP
+//! API, which a task of its own works off, in order per key, so a slow message
+//! center does not hold up Kafka. Without brokers the HTTP API is the only
+//! path, as before. Messages that find a queue full are dropped and counted in
+//! `mq_dropped_total`.
+
+use std::collections::{BTreeMap, HashMap};
+use std::sync::atomic::{AtomicUsize, Ordering};
+use std::sync::{Arc, Mutex};
+use std::time::{Duration, Instant};
+
+use anyhow::{Result, anyhow};
+use chrono::Utc;
+use futures::future::join_all;
+use rskafka::client::partition::{Compression, UnknownTopicHandling};
+use rskafka::client::producer::aggregator::RecordAggregator;
+use rskafka::client::producer::{BatchProducer, BatchProducerBuilder, ProducerClient};
+use rskafka::client::{Client, ClientBuilder};
+use rskafka::record::Record;
+use tokio::sync::{OnceCell, mpsc};
+
+use crate::service::{downstream_svc::DownstreamLimits, event_log_svc, metrics_svc};
+
+/// Topic of events dropped by the event filters.
+pub const TOPIC_EVENTS_FILTERED: &str = "PLATFORM_CUSTOMER_META_EVENTS_FILTERED";
+
+/// Messages of a topic taken from its queue at once.
+const MAX_GROUP: usize = 1024;
+
+#[derive(Debug, Clone)]
+pub struct KafkaConfig {
+    pub brokers: Vec<String>,
+    pub linger: Duration,
+    /// Upper bound of a batch in bytes, before compression.
+    pub max_batch_bytes: usize,
+    pub compression: Compression,
+    /// Time a message may take to be delivered, including the broker
+    /// connection, before it goes to the message center.
+    pub produce_timeout: Duration,
+}
+
+pub struct MqProducer {
+    delivery: Arc<Delivery>,
+    topics: Mutex<HashMap<&'static str, mpsc::Sender<Message>>>,
+}
+
+struct Delivery {
+    /// Capacity of the Kafka and the message center queue of each topic.
+    queue_capacity: usize,
+    message_center_url: String,
+    http: reqwest::Client,
+    downstream: Arc<DownstreamLimits>,
+    kafka: Option<KafkaProducer>,
+}
+
+struct Message {
+    key: Option<String>,
+    value: Vec<u8>,
+    /// Identifies the message in the delivery logs.
+    log_id: String,
+    queued_at: Instant,
+}
+
+impl MqProducer {
+    /// Connects to the brokers when configured. A failed connection is logged
+    /// and leaves the producer on the HTTP path.
+    pub async fn connect(
+        message_center_url: String,
+        http: reqwest::Client,
+        downstream: Arc<DownstreamLimits>,
+        kafka_config: Option<KafkaConfig>,
+        queue_capacity: usize,
+    ) -> Self {
+        let kafka = match kafka_config {
+            Some(config) => {
+                let connected = tokio::time::timeout(config.produce_timeout, ClientBuilder::new(config.brokers.clone()).build())
+                    .await
+                    .map_err(|_| anyhow!("timed out after {:?}", config.produce_timeout))
+                    .and_then(|client| Ok(client?));
+                match connected {
+                    Ok(client) => Some(KafkaProducer::new(Some(client), config)),
+                    Err(err) => {
+                        tracing::warn!("Kafka brokers {:?} unreachable, producing via message center: {}", config.brokers, err);
+                        None
+                    }
+                }
+            }
+            None => None,
+        };
+        Self::new(message_center_url, http, downstream, kafka, queue_capacity)
+    }
+
+    fn new(
+        message_center_url: String,
+        http: reqwest::Client,
+        downstream: Arc<DownstreamLimits>,
+        kafka: Option<KafkaProducer>,
+        queue_capacity: usize,
+    ) -> Self {
+        let delivery = Arc::new(Delivery { queue_capacity: queue_capacity.max(1), message_center_url, http, downstream, kafka });
+        Self { delivery, topics: Mutex::new(HashMap::new()) }
+    }
+
+    /// Queues a message for the topic. Messages with the same key keep their order.
+    /// `log_id` identifies the message in the delivery logs.
+    pub fn send(&self, topic: &'static str, key: Option<String>, value: Vec<u8>, log_id: String) {
+        let message = Message { key, value, log_id, queued_at: Instant::now() };
+        let mut topics = self.topics.lock().unwrap();
+        let queue = topics.entry(topic).or_insert_with(|| {
+            let (tx, rx) = mpsc::channel(self.delivery.queue_capacity);
+            let (fallback_tx, fallback_rx) = mpsc::channel(self.delivery.queue_capacity);
+            tokio::spawn(self.delivery.clone().run_topic(topic, rx, fallback_tx));
+            tokio::spawn(self.delivery.clone().run_fallback(topic, fallback_rx));
+            tx
+        });
+        enqueue(queue, topic, "kafka", message);
+    }
+}
+
+/// Queues a message without waiting; a full queue drops it.
+fn enqueue(queue: &mpsc::Sender<Message>, topic: &'static str, path: &str, message: Message) {
+    match queue.try_send(message) {
+        Ok(()) => {}
+        Err(mpsc::error::TrySendError::Full(message)) => {
+            metrics_svc::count_mq_dropped(topic, path);
+            tracing::warn!("{} queue of topic '{}' is full, dropping event ID: {}", path, topic, message.log_id);
+        }
+        Err(mpsc::error::TrySendError::Closed(message)) => {
+            tracing::error!("{} queue of topic '{}' is closed, dropping event ID: {}", path, topic, message.log_id);
+        }
+    }
+}
+
+impl Delivery {
+    async fn run_topic(
+        self: Arc<Self>,
+        topic: &'static str,
+        mut rx: mpsc::Receiver<Message>,
+        fallback_tx: mpsc::Sender<Message>,
+    ) {
+        let mut group = Vec::with_capacity(MAX_GROUP);
+        while rx.recv_many(&mut group, MAX_GROUP).await > 0 {
+            for message in self.deliver(topic, group.drain(..).collect()).await {
+                enqueue(&fallback_tx, topic, "message_center", message);
+            }
+        }
+    }
+
+    /// Produces a group to Kafka and returns the messages that were not delivered.
+    async fn deliver(&self, topic: &'static str, group: Vec<Message>) -> Vec<Message> {
+        match self.kafka.as_ref() {
+            Some(kafka) => {
+                // join_all 按顺序首次轮询, 消息按发送顺序进入各分区的批次
+                let results = join_all(group.iter().map(|m| kafka.produce(topic, m.key.as_deref(), m.value.clone()))).await;
+                group
+                    .into_iter()
+                    .zip(results)
+                    .filter_map(|(message, result)| {
+                        metrics_svc::observe_mq_delivery(topic, "kafka", result.is_ok(), message.queued_at.elapsed());
+                        match result {
+                            Ok(()) => {
+                                if event_log_svc::sampled(&message.log_id) {
+                                    tracing::info!("Successfully pushed event to Kafka topic '{}' for event ID: {}", topic, message.log_id);
+                                }
+                                None
+                            }
+                            Err(err) => {
+                                tracing::warn!(
+                                    "Failed to produce to Kafka topic '{}', event ID: {}, falling back to message center: {}",
+                                    topic,
+                                    message.log_id,
+                                    err
+                                );
+                                Some(message)
+                            }
+                        }
+                    })
+                    .collect()
+            }
+            None => group,
+        }
+    }
+
+    async fn run_fallback(self: Arc<Self>, topic: &'static str, mut rx: mpsc::Receiver<Message>) {
+        let mut group = Vec::with_capacity(MAX_GROUP);
+        while rx.recv_many(&mut group, MAX_GROUP).await > 0 {
+            self.deliver_via_message_center(topic, group.drain(..).collect()).await;
+        }
+    }
+
+    async fn deliver_via_message_center(&self, topic: &'static str, failed: Vec<Message>) {
+        // 同一 key 的消息依次回退, 不同 key 之间并发
+        let mut chains: Vec<Vec<Message>> = Vec::new();
+        let mut chain_of_key: HashMap<String, usize> = HashMap::new();
+        for message in failed {
+            match message.key.clone() {
+                Some(key) => {
+                    let index = *chain_of_key.entry(key).or_insert_with(|| {
+                        chains.push(Vec::new());
+                        chains.len() - 1
+                    });
+                    chains[index].push(message);
+                }
+                None => chains.push(vec![message]),
+            }
+        }
+        join_all(chains.into_iter().map(|chain| async move {
+            for message in chain {
+                let delivered = self.produce_via_message_center(topic, message.value, &message.log_id).await;
+                metrics_svc::observe_mq_delivery(topic, "message_center", delivered, message.queued_at.elapsed());
+            }
+        }))
+        .await;
+    }
+
+    async fn produce_via_message_center(&self, topic: &str, value: Vec<u8>, log_id: &str) -> bool {
+        let url = format!("{}/v1/message/center/mq/produce/topic/{}", self.message_center_url, topic);
+        let _permit = self.downstream.message_center.acquire().await;
+        let Ok(response) = self
+            .http
+            .post(&url)
+            .header(reqwest::header::CONTENT_TYPE, "application/json")
+            .body(value)
+            .send()
+            .await
+        else {
+            tracing::error!(
+                "Failed to send HTTP request to Message Center API for Kafka topic '{}', event ID: {}",
+                topic,
+                log_id
+            );
+            return false;
+        };
+        if response.status().is_success() {
+            if event_log_svc::sampled(log_id) {
+                tracing::info!(
+                    "Successfully pushed event to Kafka topic '{}' via Message Center API for event ID: {}",
+                    topic,
+                    log_id
+                );
+            }
+            true
+        } else {
+            let status = response.status();
+            let body = response.text().await.unwrap_or_default();
+            tracing::error!(
+                "Failed to push event to Kafka topic '{}' via Message Center API. Status: {}, Body: {}",
+                topic,
+                status,
+                body
+            );
+            false
+        }
+    }
+}
+
+struct KafkaProducer {
+    /// None only for producers built over stand-in topics.
+    client: Option<Client>,
+    config: KafkaConfig,
+    /// Producers of each topic, set up on its first message. A failed setup
+    /// leaves the cell empty, so the next message retries it.
+    topics: Mutex<HashMap<&'static str, Arc<OnceCell<TopicProducer>>>>,
+}
+
+impl KafkaProducer {
+    fn new(client: Option<Client>, config: KafkaConfig) -> Self {
+        Self { client, config, topics: Mutex::new(HashMap::new()) }
+    }
+
+    #[cfg(test)]
+    fn with_topics(config: KafkaConfig, topics: Vec<(&'static str, TopicProducer)>) -> Self {
+        let producer = Self::new(None, config);
+        for (topic, topic_producer) in topics {
+            let cell = Arc::new(OnceCell::new());
+            let _ = cell.set(topic_producer);
+            producer.topics.lock().unwrap().insert(topic, cell);
+        }
+        producer
+    }
+
+    /// Delivers one record, giving up after `produce_timeout`. A record that
+    /// timed out may still reach the broker, so delivery is at least once.
+    async fn produce(&self, topic: &'static str, key: Option<&str>, value: Vec<u8>) -> Result<()> {
+        tokio::time::timeout(self.config.produce_timeout, self.produce_record(topic, key, value))
+            .await
+            .map_err(|_| anyhow!("timed out after {:?}", self.config.produce_timeout))?
+    }
+
+    async fn produce_record(&self, topic: &'static str, key: Option<&str>, value: Vec<u8>) -> Result<()> {
+        let cell = self.topics.lock().unwrap().entry(topic).or_default().clone();
+        let producer = cell.get_or_try_init(|| self.open_topic(topic)).await?;
+        let record = Record {
+            key: key.map(|k| k.as_bytes().to_vec()),
+            value: Some(value),
+            headers: BTreeMap::new(),
+            timestamp: Utc::now(),
+        };
+        producer.partition(key).produce(record).await?;
+        Ok(())
+    }
+
+    async fn open_topic(&self, topic: &str) -> Result<TopicProducer> {
+        let client = self.client.as_ref().ok_or_else(|| anyhow!("no Kafka client"))?;
+        let partitions = client
+            .list_topics()
+            .await?
+            .into_iter()
+            .find(|t| t.name == topic)
+            .map(|t| t.partitions)
+            .filter(|partitions| !partitions.is_empty())
+            .ok_or_else(|| anyhow!("topic {} not found", topic))?;
+        let mut clients: Vec<Arc<dyn ProducerClient>> = Vec::with_capacity(partitions.len());
+        for partition in partitions {
+            let partition_client = client
+                .partition_client(topic.to_string(), partition, UnknownTopicHandling::Retry)
+                .await?;
+            clients.push(Arc::new(partition_client));
+        }
+        tracing::info!("Kafka producer of topic '{}' ready, {} partitions", topic, clients.len());
+        Ok(TopicProducer::new(clients, &self.config))
+    }
+}
+
+/// Batch producers of one topic, one per partition in partition order. Built
+/// from `ProducerClient`s, so a stand-in client can take the brokers' place.
+pub struct TopicProducer {
+    partitions: Vec<BatchProducer<RecordAggregator>>,
+    next: AtomicUsize,
+}
+
+impl TopicProducer {
+    pub fn new(clients: Vec<Arc<dyn ProducerClient>>, config: &KafkaConfig) -> Self {
+        let partitions = clients
+            .into_iter()
+            .map(|client| {
+                BatchProducerBuilder::new_with_client(client)
+                    .with_linger(config.linger)
+                    .with_compression(config.compression)
+                    .build(RecordAggregator::new(config.max_batch_bytes))
+            })
+            .collect();
+        Self { partitions, next: AtomicUsize::new(0) }
+    }
+
+    /// Keyed messages go to the partition of their key, the others round-robin.
+    fn partition(&self, key: Option<&str>) -> &BatchProducer<RecordAggregator> {
+        let index = match key {
+            Some(key) => (murmur2(key.as_bytes()) & 0x7fff_ffff) as usize,
+            None => self.next.fetch_add(1, Ordering::Relaxed),
+        };
+        &self.partitions[index % self.partitions.len()]
+    }
+}
+
+/// Murmur2 hash of the Java client's `Utils.murmur2`, which its default
+/// partitioner takes modulo the partition count after clearing the sign bit.
+fn murmur2(data: &[u8]) -> u32 {
+    const SEED: u32 = 0x9747_b28c;
+    const M: u32 = 0x5bd1_e995;
+    const R: u32 = 24;
+
+    let mut h = SEED ^ data.len() as u32;
+    let chunks = data.chunks_exact(4);
+    let tail = chunks.remainder();
+    for chunk in chunks {
+        let mut k = u32::from_le_bytes([chunk[0], chunk[1], chunk[2], chunk[3]]);
+        k = k.wrapping_mul(M);
+        k ^= k >> R;
+        k = k.wrapping_mul(M);
+        h = h.wrapping_mul(M);
+        h ^= k;
+    }
+    if tail.len() >= 3 {
+        h ^= (tail[2] as u32) << 16;
+    }
+    if tail.len() >= 2 {
+        h ^= (tail[1] as u32) << 8;
+    }
+    if !tail.is_empty() {
+        h ^= tail[0] as u32;
+        h = h.wrapping_mul(M);
+    }
+    h ^= h >> 13;
+    h = h.wrapping_mul(M);
+    h ^= h >> 15;
+    h
+}
+
+/// Parses `KAFKA_COMPRESSION`; unknown values disable compression.
+pub fn parse_compression(value: &str) -> Compression {
+    match value {
+        "lz4" => Compression::Lz4,
+        "zstd" => Compression::Zstd,
+        _ => Compression::NoCompression,
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use std::future::Future;
+    use std::pin::Pin;
+
+    use axum::{Router, body::Bytes, extract::State, routing::post};
+
+    use super::*;
+    use crate::service::downstream_svc::Downstream;
+
+    const TOPIC: &str = "TEST_TOPIC";
+
+    /// Records the batches it is asked to produce, or never answers.
+    #[derive(Debug, Default)]
+    struct StandInBroker {
+        hang: bool,
+        batches: Mutex<Vec<Vec<Vec<u8>>>>,
+    }
+
+    impl ProducerClient for StandInBroker {
+        fn produce(
+            &self,
+            records: Vec<Record>,
+            _compression: Compression,
+        ) -> Pin<Box<dyn Future<Output = Result<Vec<i64>, rskafka::client::error::Error>> + Send + '_>> {
+            Box::pin(async move {
+                if self.hang {
+                    std::future::pending::<()>().await;
+                }
+                let offsets = (0..records.len() as i64).collect();
+                self.batches
+                    .lock()
+                    .unwrap()
+                    .push(records.into_iter().map(|r| r.value.unwrap_or_default()).collect());
+                Ok(offsets)
+            })
+        }
+    }
+
+    fn config(linger: Duration, produce_timeout: Duration) -> KafkaConfig {
+        KafkaConfig {
+            brokers: Vec::new(),
+            linger,
+            max_batch_bytes: 1024 * 1024,
+            compression: Compression::NoCompression,
+            produce_timeout,
+        }
+    }
+
+    fn producer(message_center_url: String, broker: Arc<StandInBroker>, config: KafkaConfig) -> MqProducer {
+        let topic = TopicProducer::new(vec![broker as Arc<dyn ProducerClient>], &config);
+        let downstream = Arc::new(DownstreamLimits {
+            dq: Downstream::new("dq", 0),
+            message_center: Downstream::new("message_center", 0),
+        });
+        let kafka = KafkaProducer::with_topics(config, vec![(TOPIC, topic)]);
+        MqProducer::new(message_center_url, reqwest::Client::new(), downstream, Some(kafka), 1024)
+    }
+
+    async fn wait_until(mut done: impl FnMut() -> bool) {
+        for _ in 0..200 {
+            if done() {
+                return;
+            }
+            tokio::time::sleep(Duration::from_millis(10)).await;
+        }
+        panic!("condition not met within 2s");
+    }
+
+    #[tokio::test]
+    async fn same_key_messages_share_a_batch_in_send_order() {
+        let broker = Arc::new(StandInBroker::default());
+        let producer = producer(
+            "http://127.0.0.1:9".to_string(),
+            broker.clone(),
+            config(Duration::from_millis(50), Duration::from_secs(5)),
+        );
+        for i in 0..10 {
+            producer.send(TOPIC, Some("task".to_string()), vec![i], i.to_string());
+        }
+
+        wait_until(|| !broker.batches.lock().unwrap().is_empty()).await;
+        let batches = broker.batches.lock().unwrap();
+        assert_eq!(*batches, vec![(0..10).map(|i| vec![i]).collect::<Vec<_>>()]);
+    }
+
+    #[tokio::test]
+    async fn undelivered_messages_fall_back_to_message_center_in_order() {
+        let received: Arc<Mutex<Vec<Vec<u8>>>> = Arc::default();
+        let app = Router::new()
+            .route(
+                "/v1/message/center/mq/produce/topic/{topic}",
+                post(|State(received): State<Arc<Mutex<Vec<Vec<u8>>>>>, body: Bytes| async move {
+                    received.lock().unwrap().push(body.to_vec());
+                }),
+            )
+            .with_state(received.clone());
+        let listener = tokio::net::TcpListener::bind("127.0.0.1:0").await.unwrap();
+        let url = format!("http://{}", listener.local_addr().unwrap());
+        tokio::spawn(async move { axum::serve(listener, app).await });
+
+        let broker = Arc::new(StandInBroker { hang: true, ..Default::default() });
+        let producer = producer(url, broker, config(Duration::from_millis(5), Duration::from_millis(100)));
+        for i in 0..5 {
+            producer.send(TOPIC, Some("task".to_string()), vec![i], i.to_string());
+        }
+
+        wait_until(|| received.lock().unwrap().len() == 5).await;
+        assert_eq!(*received.lock().unwrap(), (0..5).map(|i| vec![i]).collect::<Vec<_>>());
+    }
+
+    #[test]
+    fn murmur2_matches_the_java_client() {
+        // Utils.murmur2 of the Kafka Java client, as a signed int
+        let cases: &[(&[u8], i32)] = &[
+            (b"21", -973932308),
+            (b"foobar", -790332482),
+            (b"a-little-bit-long-string", -985981536),
+            (b"a-little-bit-longer-string", -1486304829),
+            (b"lkjh234lh9fiuh90y23oiuhsafujhadof229phr9h19h89h8", -58897971),
+            (b"abc", 479470107),
+        ];
+        for (data, expected) in cases {
+            assert_eq!(murmur2(data) as i32, *expected, "{}", String::from_utf8_lossy(data));
+        }
+    }
+}
@@ -0,0 +1,214 @@
+//! In-process tier in front of the Redis-backed config caches.
+//!
+//! Each cache service keeps its full list in Redis; a `NearCache` keeps the
+//! last loaded list in memory, so lookups on the event path do not leave the
+//! process. Entries are refreshed ahead of expiry in the background, and the
+//! portal drops them on configuration changes by publishing the cache name on
+//! `INVALIDATION_CHANNEL` (`*` drops every cache).
+//!
+//! `CachedFlag` does the same for single switches read from Redis.
+
+use std::future::Future;
+use std::sync::atomic::{AtomicBool, AtomicI64, AtomicU64, AtomicU8, Ordering};
+use std::sync::{Arc, RwLock};
+use std::time::{Duration, Instant};
+
+use anyhow::Result;
+use chrono::Utc;
+use redis::Commands;
+
+pub const INVALIDATION_CHANNEL: &str = "event_rs::cache_invalidate";
+
+/// Age after which a hit triggers a background refresh.
+const REFRESH_AFTER: Duration = Duration::from_secs(20);
+/// Age after which an entry is not served anymore.
+const EXPIRE_AFTER: Duration = Duration::from_secs(60);
+
+pub struct NearCache<T> {
+    /// Name used in invalidation messages.
+    name: &'static str,
+    /// Key of the shared Redis tier, deleted together with the near entry.
+    redis_key: &'static str,
+    slot: RwLock<Option<(Arc<T>, Instant)>>,
+    /// Bumped by every invalidation, so a load started before it is not stored.
+    generation: AtomicU64,
+    refreshing: AtomicBool,
+}
+
+impl<T: Send + Sync + 'static> NearCache<T> {
+    pub fn new(name: &'static str, redis_key: &'static str) -> Self {
+        Self {
+            name,
+            redis_key,
+            slot: RwLock::new(None),
+            generation: AtomicU64::new(0),
+            refreshing: AtomicBool::new(false),
+        }
+    }
+
+    /// Returns the cached value, calling `load` on a miss. A hit older than
+    /// `REFRESH_AFTER` is served as is while one background task reloads it.
+    pub async fn get_or_load<F, Fut>(&'static self, load: F) -> Result<Arc<T>>
+    where
+        F: FnOnce() -> Fut,
+        Fut: Future<Output = Result<T>> + Send + 'static,
+    {
+        let cached = self.slot.read().unwrap().clone();
+        if let Some((value, loaded_at)) = cached {
+            let age = loaded_at.elapsed();
+            if age < EXPIRE_AFTER {
+                if age >= REFRESH_AFTER && !self.refreshing.swap(true, Ordering::AcqRel) {
+                    let guard = RefreshGuard(&self.refreshing);
+                    let generation = self.generation.load(Ordering::Acquire);
+                    let load = load();
+                    tokio::spawn(async move {
+                        let _guard = guard;
+                        match load.await {
+                            Ok(value) => self.store(Arc::new(value), generation),
+                            Err(err) => tracing::warn!("near cache {} refresh failed: {}", self.name, err),
+                        }
+                    });
+                }
+                return Ok(value);
+            }
+        }
+
+        let generation = self.generation.load(Ordering::Acquire);
+        let value = Arc::new(load().await?);
+        self.store(value.clone(), generation);
+        Ok(value)
+    }
+
+    fn store(&self, value: Arc<T>, generation: u64) {
+        let mut slot = self.slot.write().unwrap();
+        if self.generation.load(Ordering::Acquire) == generation {
+            *slot = Some((value, Instant::now()));
+        }
+    }
+}
+
+/// Clears `refreshing` when the background refresh ends, also when the load
+/// panics or the task is dropped, so later hits can start a new one.
+struct RefreshGuard(&'static AtomicBool);
+
+impl Drop for RefreshGuard {
+    fn drop(&mut self) {
+        self.0.store(false, Ordering::Release);
+    }
+}
+
+/// Type-erased view used by the invalidation subscriber.
+pub trait Invalidate: Sync {
+    fn name(&self) -> &'static str;
+    /// Shared Redis entry owned by this service, deleted on invalidation.
+    fn redis_key(&self) -> Option<&'static str>;
+    fn invalidate(&self);
+}
+
+impl<T: Send + Sync> Invalidate for NearCache<T> {
+    fn name(&self) -> &'static str {
+        self.name
+    }
+
+    fn redis_key(&self) -> Option<&'static str> {
+        Some(self.redis_key)
+    }
+
+    fn invalidate(&self) {
+        let mut slot = self.slot.write().unwrap();
+        self.generation.fetch_add(1, Ordering::AcqRel);
+        *slot = None;
+    }
+}
+
+const FLAG_UNKNOWN: u8 = 0;
+const FLAG_OFF: u8 = 1;
+const FLAG_ON: u8 = 2;
+
+/// A switch whose source of truth is a Redis key written by the portal.
+/// It is read once and then served from memory until invalidated or older
+/// than `EXPIRE_AFTER`.
+pub struct CachedFlag {
+    name: &'static str,
+    redis_key: &'static str,
+    /// Value meaning "on".
+    on_value: &'static str,
+    state: AtomicU8,
+    loaded_at_ms: AtomicI64,
+}
+
+impl CachedFlag {
+    pub const fn new(name: &'static str, redis_key: &'static str, on_value: &'static str) -> Self {
+        Self {
+            name,
+            redis_key,
+            on_value,
+            state: AtomicU8::new(FLAG_UNKNOWN),
+            loaded_at_ms: AtomicI64::new(0),
+        }
+    }
+
+    pub fn get(&self, redis_conn: &mut impl Commands) -> bool {
+        let now_ms = Utc::now().timestamp_millis();
+        let state = self.state.load(Ordering::Acquire);
+        if state != FLAG_UNKNOWN && now_ms - self.loaded_at_ms.load(Ordering::Relaxed) < EXPIRE_AFTER.as_millis() as i64 {
+            return state == FLAG_ON;
+        }
+        let on = redis_conn
+            .get::<_, String>(self.redis_key)
+            .map(|s| s == self.on_value)
+            .unwrap_or(false);
+        self.loaded_at_ms.store(now_ms, Ordering::Relaxed);
+        self.state.store(if on { FLAG_ON } else { FLAG_OFF }, Ordering::Release);
+        on
+    }
+}
+
+impl Invalidate for CachedFlag {
+    fn name(&self) -> &'static str {
+        self.name
+    }
+
+    fn redis_key(&self) -> Option<&'static str> {
+        // The key is the portal's, it must survive the invalidation.
+        None
+    }
+
+    fn invalidate(&self) {
+        self.state.store(FLAG_UNKNOWN, Ordering::Release);
+    }
+}
+
+/// Subscribes to `INVALIDATION_CHANNEL` on a dedicated thread, reconnecting
+/// after errors. A message drops the named near cache and its Redis entry.
+pub fn spawn_invalidation_listener(redis_client: redis::Client, caches: Vec<&'static dyn Invalidate>) {
+    std::thread::spawn(move || loop {
+        if let Err(err) = listen(&redis_client, &caches) {
+            tracing::warn!("near cache invalidation listener failed: {}, reconnecting", err);
+        }
+        // A missed message may have left stale entries behind.
+        for cache in &caches {
+            cache.invalidate();
+        }
+        std::thread::sleep(Duration::from_secs(5));
+    });
+}
+
+fn listen(redis_client: &redis::Client, caches: &[&'static dyn Invalidate]) -> redis::RedisResult<()> {
+    let mut conn = redis_client.get_connection()?;
+    let mut command_conn = redis_client.get_connection()?;
+    let mut pubsub = conn.as_pubsub();
+    pubsub.subscribe(INVALIDATION_CHANNEL)?;
+    tracing::info!("near cache invalidation listener subscribed to {}", INVALIDATION_CHANNEL);
+    loop {
+        let message = pubsub.get_message()?;
+        let name: String = message.get_payload()?;
+        for cache in caches.iter().filter(|c| name == "*" || c.name() == name) {
+            cache.invalidate();
+            if let Some(redis_key) = cache.redis_key() {
+                let _: redis::RedisResult<()> = command_conn.del(redis_key);
+            }
+            tracing::info!("near cache {} invalidated", cache.name());
+        }
+    }
+}
@@ -0,0 +1,187 @@
+//! Platform-side cooldown over the recently stored events.
+//!
+//! `filterEvent` of the Java service had this check commented out: an event is
+//! filtered when a non-filtered event of the same task and event type was
+//! stored within its algorithm's `cooling_second` before it, which cost one
+//! MySQL query per report. The event times of the last `horizon` are kept in
+//! memory instead. They are recorded when a non-filtered event is stored and
+//! loaded from the event table at startup, so the check is a binary search in
+//! a short sorted list. Keys whose times have all left the horizon are
+//! dropped once per `SWEEP_INTERVAL_MS`, while their shard is locked to record.
+//!
+//! A node only sees the events it stored itself, so the windows are complete
+//! when boxes are pinned to it (`NODE_AFFINITY`). Cooling periods longer than
+//! the horizon are only checked over the horizon.
+
+use std::collections::{HashMap, VecDeque};
+use std::hash::{BuildHasher, RandomState};
+use std::sync::Mutex;
+use std::sync::atomic::{AtomicBool, AtomicI64, Ordering};
+use std::time::Duration;
+
+use chrono::{NaiveDateTime, TimeDelta, Utc};
+use futures::TryStreamExt;
+use once_cell::sync::Lazy;
+use sea_orm::{DbConn, DbErr};
+
+use crate::ctl::bs_model::BoxReportRequest;
+use crate::models::event;
+use crate::service::event_svc;
+
+const SHARDS: usize = 64;
+/// Event times kept per task and event type. A busy key stays short anyway,
+/// because the events inside its cooldown are filtered and not recorded.
+const MAX_TIMES_PER_KEY: usize = 256;
+const SWEEP_INTERVAL_MS: i64 = 60_000;
+
+static ENABLED: AtomicBool = AtomicBool::new(false);
+static HORIZON_MS: AtomicI64 = AtomicI64::new(3_600_000);
+static RECENT_EVENTS: Lazy<RecentEvents> = Lazy::new(RecentEvents::new);
+
+/// Turns the cooldown on and sets how far back event times are kept.
+pub fn configure(enabled: bool, horizon: Duration) {
+    HORIZON_MS.store(horizon.as_millis() as i64, Ordering::Relaxed);
+    ENABLED.store(enabled, Ordering::Relaxed);
+}
+
+pub fn enabled() -> bool {
+    ENABLED.load(Ordering::Relaxed)
+}
+
+/// Whether a non-filtered event of the same task and event type was stored
+/// within the cooling period of the algorithm before this event.
+pub fn within_cooldown(vo: &BoxReportRequest) -> bool {
+    if !enabled() {
+        return false;
+    }
+    let (Some(task_code), Some(event_type), Some(event_time)) =
+        (vo.task_code.as_deref(), vo.event_type.as_deref(), vo.event_time)
+    else {
+        return false;
+    };
+    let Some(cooling_second) = vo.extra_slots.alg_param.as_ref().and_then(|ap| ap.cooling_second) else {
+        return false;
+    };
+    if cooling_second <= 0 {
+        return false;
+    }
+    let event_time_ms = event_time.timestamp_millis();
+    RECENT_EVENTS.any_between(task_code, event_type, event_time_ms - cooling_second * 1000, event_time_ms)
+}
+
+/// Records a stored event unless it was filtered.
+pub fn record_saved(event: &event::Model) {
+    if !enabled() || event.marking.as_deref() == Some("filtered") {
+        return;
+    }
+    if let (Some(task_code), Some(event_type), Some(event_time)) =
+        (event.task_code.as_deref(), event.event_type.as_deref(), event.event_time)
+    {
+        RECENT_EVENTS.record(task_code, event_type, millis(event_time), now_ms());
+    }
+}
+
+/// Loads the non-filtered events of the horizon. Box clocks may run ahead,
+/// so events up to one horizon after now are loaded as well. The rows are
+/// streamed and trimmed per key as they arrive, so only the kept times are
+/// held in memory.
+pub async fn warm_up(db: &DbConn) -> Result<usize, DbErr> {
+    let now = Utc::now().naive_utc();
+    let horizon = TimeDelta::milliseconds(HORIZON_MS.load(Ordering::Relaxed));
+    let mut rows = event_svc::stream_unfiltered_event_times(db, now - horizon, now + horizon).await?;
+    let now_ms = now_ms();
+    let mut loaded = 0;
+    while let Some((task_code, event_type, event_time)) = rows.try_next().await? {
+        if let (Some(task_code), Some(event_type)) = (task_code, event_type) {
+            RECENT_EVENTS.record(&task_code, &event_type, millis(event_time), now_ms);
+            loaded += 1;
+        }
+    }
+    Ok(loaded)
+}
+
+/// event_time is stored as naive UTC.
+fn millis(event_time: NaiveDateTime) -> i64 {
+    event_time.and_utc().timestamp_millis()
+}
+
+fn now_ms() -> i64 {
+    Utc::now().timestamp_millis()
+}
+
+/// Sorted event times per task code and event type, in mutex-striped shards.
+/// The maps are nested so that a lookup borrows the keys of the report.
+struct RecentEvents {
+    hasher: RandomState,
+    shards: Vec<Mutex<RecentShard>>,
+}
+
+#[derive(Default)]
+struct RecentShard {
+    times: HashMap<String, HashMap<String, VecDeque<i64>>>,
+    swept_at_ms: i64,
+}
+
+impl RecentEvents {
+    fn new() -> Self {
+        Self {
+            hasher: RandomState::new(),
+            shards: (0..SHARDS).map(|_| Mutex::new(RecentShard::default())).collect(),
+        }
+    }
+
+    fn shard(&self, task_code: &str, event_type: &str) -> &Mutex<RecentShard> {
+        &self.shards[self.hasher.hash_one((task_code, event_type)) as usize % SHARDS]
+    }
+
+    fn any_between(&self, task_code: &str, event_type: &str, from_ms: i64, to_ms: i64) -> bool {
+        let shard = self.shard(task_code, event_type).lock().unwrap();
+        let Some(times) = shard.times.get(task_code).and_then(|types| types.get(event_type)) else {
+            return false;
+        };
+        let first = times.partition_point(|t| *t < from_ms);
+        times.get(first).is_some_and(|t| *t <= to_ms)
+    }
+
+    fn record(&self, task_code: &str, event_type: &str, event_time_ms: i64, now_ms: i64) {
+        let oldest_ms = now_ms - HORIZON_MS.load(Ordering::Relaxed);
+        if event_time_ms < oldest_ms {
+            return;
+        }
+        let mut shard = self.shard(task_code, event_type).lock().unwrap();
+        if now_ms - shard.swept_at_ms >= SWEEP_INTERVAL_MS {
+            // 清掉时间都已超出范围的 key, 任务下线后不再残留
+            shard.times.retain(|_, types| {
+                types.retain(|_, times| {
+                    drop_older(times, oldest_ms);
+                    !times.is_empty()
+                });
+                !types.is_empty()
+            });
+            shard.swept_at_ms = now_ms;
+        }
+        let times = shard
+            .times
+            .entry(task_code.to_string())
+            .or_default()
+            .entry(event_type.to_string())
+            .or_default();
+        // 上报基本按时间先后到达, 乱序的才需要插入到中间
+        if times.back().is_none_or(|t| *t <= event_time_ms) {
+            times.push_back(event_time_ms);
+        } else {
+            let at = times.partition_point(|t| *t <= event_time_ms);
+            times.insert(at, event_time_ms);
+        }
+        drop_older(times, oldest_ms);
+        while times.len() > MAX_TIMES_PER_KEY {
+            times.pop_front();
+        }
+    }
+}
+
+fn drop_older(times: &mut VecDeque<i64>, oldest_ms: i64) {
+    while times.front().is_some_and(|t| *t < oldest_ms) {
+        times.pop_front();
+    }
+}
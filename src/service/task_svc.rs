@@ -1,3 +1,5 @@
+use std::sync::Arc;
+
 use anyhow::Result;
 use once_cell::sync::Lazy;
 use redis::{Client, Commands};
@@ -5,15 +7,34 @@ use sea_orm::{ColumnTrait, DbConn, DbErr, EntityTrait, QueryFilter};
 use tokio::sync::Mutex;
 
 use crate::models::{prelude::*, task};
+use crate::service::near_cache::{Invalidate, NearCache};
 
 const CACHE_KEY_RUNNING_TASKS: &str = "event_rs::all_running_tasks";
 const CACHE_TTL: u64 = 180; // 3 minutes in seconds
 static TASK_FETCH_LOCK: Lazy<Mutex<()>> = Lazy::new(|| Mutex::new(()));
+static TASK_NEAR_CACHE: Lazy<NearCache<Vec<task::Model>>> =
+    Lazy::new(|| NearCache::new("tasks", CACHE_KEY_RUNNING_TASKS));
 
-/// Fetches all running tasks, using a cache with a 3-minute TTL.
+/// Fetches all running tasks from the near cache, backed by the Redis cache.
 pub async fn get_all_running_tasks(
     db: &DbConn,
     redis_client: &Client,
+) -> Result<Arc<Vec<task::Model>>> {
+    let (db, redis_client) = (db.clone(), redis_client.clone());
+    TASK_NEAR_CACHE
+        .get_or_load(|| async move { fetch_all_running_tasks(&db, &redis_client).await })
+        .await
+}
+
+/// Near cache of this service, for the invalidation listener.
+pub fn near_cache() -> &'static dyn Invalidate {
+    &*TASK_NEAR_CACHE
+}
+
+/// Fetches all running tasks, using a cache with a 3-minute TTL.
+async fn fetch_all_running_tasks(
+    db: &DbConn,
+    redis_client: &Client,
 ) -> Result<Vec<task::Model>> {
     let mut redis_conn = redis_client
         .get_connection()
@@ -69,7 +90,7 @@ pub async fn find_running_tasks_by_criteria<'a>(
     let tasks = get_all_running_tasks(db, redis_client).await?;
 
     let filtered_tasks = tasks
-        .into_iter()
+        .iter()
         .filter(|t| {
             if let Some(code) = criteria.code {
                 if t.code.as_deref() != Some(code) {
@@ -88,6 +109,7 @@ pub async fn find_running_tasks_by_criteria<'a>(
             }
             true
         })
+        .cloned()
         .collect();
 
     Ok(filtered_tasks)